@@ -1,240 +1,2131 @@
 import java.io.*;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
 
-import javax.imageio.ImageIO;
+class JPEGDecoder {
+	DecoderOptions options;
+	int[][] coefficients; // one plane per component in its own block grid, 64 values per block
+	byte[][] endOfBlocks; // zigzag index of the last non-zero coefficient of each block
+	byte[][] samples; // inverse transformed planes, planeBlocksPerLine * 8 samples per line
+	byte[] pixels; // interleaved BGR (or RGB), or gray, top-down
+	int outputWidth; // crop (or image) size divided by the scale denominator, rounded up
+	int outputHeight;
+	int outputChannels; // bytes per pixel, 1 for the samples of a gray image and 3 otherwise
+	int outputX; // position of the output in the scaled image
+	int outputY;
+	int firstMCUColumn; // MCUs covering the output, and around it those fancy upsampling reads; planes only hold these
+	int lastMCUColumn;
+	int firstMCURow;
+	int lastMCURow;
+	ColorConverter colorConverter;
+	IDCTEngine IDCTEngine; // the engine of the options, or its Vector API variant
+	ScanListener scanListener;
+	int scanCount; // scans of the current image decoded so far
+	// buffers of the fused decoding kept for the next image, like the planes above
+	int[][] rowPlanes;
+	byte[][] rowEndOfBlocks;
+	byte[][] rowSamples;
+	byte[] band;
+	long[] stageNanos = new long[DecoderCounters.STAGES]; // of the current image, by DecoderCounters stage
+	long inputBytes; // size of the current file, set by parseJPEGHeaderAndDecode
+	DecodeEvent decodeEvent; // the current image, from its parsing to its last row, null when nothing records it
+	long parseStartNanos; // of the current file, with the entropy decoding counted before its parsing started
+	long parseNestedNanos;
+	DecodeStageEvent parseEvent;
+	List<String> warnings = new ArrayList<String>(); // problems of the current image that did not stop its decoding
+
+	JPEGDecoder() {
+		this(new DecoderOptions());
+	}
+
+	JPEGDecoder(DecoderOptions options) {
+		this.options = options;
+		if (options.isVectorized()) {
+			this.colorConverter = options.isRGB() ? VectorSupport.RGB : VectorSupport.BGR;
+			this.IDCTEngine = VectorSupport.vectorVariant(options.getIDCTEngine());
+		} else {
+			this.colorConverter = options.isRGB() ? ColorConverter.RGB : ColorConverter.BGR;
+			this.IDCTEngine = options.getIDCTEngine();
+		}
+	}
+
+	public DecoderOptions getOptions() {
+		return options;
+	}
+
+	// get ready for the next image, the buffers are kept and only grow so that decoding images of the same size
+	// again allocates next to nothing
+	public void reset() {
+		scanCount = 0;
+		Arrays.fill(stageNanos, 0);
+		inputBytes = 0;
+		decodeEvent = null;
+		parseEvent = null;
+		warnings.clear();
+	}
+
+	public long getStageNanos(int stage) {
+		return stageNanos[stage];
+	}
+
+	// kept until the next reset, so that the caller can report them with the file
+	public List<String> getWarnings() {
+		return warnings;
+	}
+
+	public void warn(String warning) {
+		warnings.add(warning);
+	}
+
+	public int[][] getCoefficients() {
+		return coefficients;
+	}
+
+	public byte[] getPixels() {
+		return pixels;
+	}
+
+	public int getOutputWidth() {
+		return outputWidth;
+	}
+
+	public int getOutputHeight() {
+		return outputHeight;
+	}
+
+	public int getOutputChannels() {
+		return outputChannels;
+	}
+
+	// position of the output in the scaled image, set by computeRegion
+	public int getOutputX() {
+		return outputX;
+	}
+
+	public int getOutputY() {
+		return outputY;
+	}
+
+	public int getScanCount() {
+		return scanCount;
+	}
+
+	public void setScanListener(ScanListener scanListener) {
+		this.scanListener = scanListener;
+	}
+
+	// samples per block side, 8 unless decoding is scaled down
+	private int blockSize() {
+		return 8 / options.getScaleDenominator();
+	}
+
+	// output window in the scaled image and the MCUs covering it, the whole image unless a crop is set;
+	// only needs the frame header
+	public void computeRegion(JPEGHeader header) {
+		int scaleDenominator = options.getScaleDenominator();
+		int left = 0;
+		int top = 0;
+		int right = (header.getWidth() + scaleDenominator - 1) / scaleDenominator;
+		int bottom = (header.getHeight() + scaleDenominator - 1) / scaleDenominator;
+		if (options.hasCrop()) {
+			left = Math.min(options.getCropX() / scaleDenominator, right);
+			top = Math.min(options.getCropY() / scaleDenominator, bottom);
+			right = Math.max(left, Math.min((options.getCropX() + options.getCropWidth() + scaleDenominator - 1)
+					/ scaleDenominator, right));
+			bottom = Math.max(top, Math.min((options.getCropY() + options.getCropHeight() + scaleDenominator - 1)
+					/ scaleDenominator, bottom));
+		}
+		outputX = left;
+		outputY = top;
+		outputWidth = right - left;
+		outputHeight = bottom - top;
+		outputChannels = header.getComponents().size() > 3 || options.isExpandGray() ? 3 : 1;
+
+		int mcuWidth = blockSize() * header.getHorizontalSamplingFactor();
+		int mcuHeight = blockSize() * header.getVerticalSamplingFactor();
+		firstMCUColumn = left / mcuWidth;
+		lastMCUColumn = (right + mcuWidth - 1) / mcuWidth;
+		firstMCURow = top / mcuHeight;
+		lastMCURow = (bottom + mcuHeight - 1) / mcuHeight;
+		if (options.hasCrop() && options.isFancyUpsampling() && header.getComponents().size() > 3) {
+			// fancy upsampling reads the samples around those of the crop, so the MCUs around it are decoded too
+			// and the upsamplers only meet plane edges at the image edges or outside the output
+			boolean neighbourColumns = false;
+			boolean neighbourLines = false;
+			for (int k = 1; k <= 3; k++) {
+				Component component = header.getComponents().get(k);
+				int h = component.getHorizontalSamplingFactor();
+				int v = component.getVerticalSamplingFactor();
+				neighbourColumns |= Upsampler.readsNeighbourColumns(h, v, header.getHorizontalSamplingFactor(),
+						header.getVerticalSamplingFactor());
+				neighbourLines |= Upsampler.readsNeighbourLines(h, v, header.getHorizontalSamplingFactor(),
+						header.getVerticalSamplingFactor());
+			}
+			if (neighbourColumns) {
+				firstMCUColumn = Math.max(firstMCUColumn - 1, 0);
+				lastMCUColumn = Math.min(lastMCUColumn + 1, header.getHorizontalMCUCount());
+			}
+			if (neighbourLines) {
+				firstMCURow = Math.max(firstMCURow - 1, 0);
+				lastMCURow = Math.min(lastMCURow + 1, header.getVerticalMCUCount());
+			}
+		}
+		if (header.isMultiScan()) {
+			// refinement scans need the earlier bits of every block they pass, and non-interleaved scans
+			// cross the rows of the image, so only the MCU rows below the region are left out
+			firstMCUColumn = 0;
+			lastMCUColumn = header.getHorizontalMCUCount();
+			firstMCURow = 0;
+		}
+	}
+
+	private boolean inRegion(int i, int j) {
+		return i >= firstMCURow && i < lastMCURow && j >= firstMCUColumn && j < lastMCUColumn;
+	}
+
+	// whether any of MCUs [firstMCU, lastMCU) lies in the region
+	private boolean intersectsRegion(JPEGHeader header, int firstMCU, int lastMCU) {
+		int columns = header.getHorizontalMCUCount();
+		int first = Math.max(firstMCU, firstMCURow * columns);
+		int last = Math.min(lastMCU, lastMCURow * columns);
+		while (first < last) {
+			int rowStart = first / columns * columns;
+			if (Math.max(first, rowStart + firstMCUColumn) < Math.min(last, rowStart + lastMCUColumn)) {
+				return true;
+			}
+			first = rowStart + columns;
+		}
+		return false;
+	}
+
+	private int planeBlocksPerLine(Component component) {
+		return (lastMCUColumn - firstMCUColumn) * component.getHorizontalSamplingFactor();
+	}
+
+	private int planeBlocksPerColumn(Component component) {
+		return (lastMCURow - firstMCURow) * component.getVerticalSamplingFactor();
+	}
+
+	// buffer zeroed up to length when it is long enough, a new array otherwise
+	private static int[] reuse(int[] buffer, int length) {
+		if (buffer == null || buffer.length < length) {
+			return new int[length];
+		}
+		Arrays.fill(buffer, 0, length, 0);
+		return buffer;
+	}
+
+	private static byte[] reuse(byte[] buffer, int length) {
+		if (buffer == null || buffer.length < length) {
+			return new byte[length];
+		}
+		Arrays.fill(buffer, 0, length, (byte) 0);
+		return buffer;
+	}
+
+	// pixels keep their exact size since callers see them
+	private void allocatePixels(JPEGHeader header) {
+		if (pixels == null || pixels.length != outputWidth * outputHeight * outputChannels) {
+			pixels = new byte[outputWidth * outputHeight * outputChannels];
+		}
+	}
+
+	// component planes are indexed like header.getComponents(), index 0 is unused, and cover the
+	// blocks of the region. They are set up by the first scan of an image and may be longer than needed
+	private void allocateCoefficients(JPEGHeader header) {
+		if (scanCount > 0) {
+			return;
+		}
+		if (coefficients == null || coefficients.length != header.getComponents().size()) {
+			coefficients = new int[header.getComponents().size()][];
+			endOfBlocks = new byte[header.getComponents().size()][];
+		}
+		for (int k = 1; k < header.getComponents().size(); k++) {
+			Component component = header.getComponents().get(k);
+			int blockCount = planeBlocksPerLine(component) * planeBlocksPerColumn(component);
+			coefficients[k] = reuse(coefficients[k], blockCount * 64);
+			endOfBlocks[k] = reuse(endOfBlocks[k], blockCount);
+		}
+	}
+
+	// entropy decode the current scan into coefficients, which keeps the (still quantized) coefficients of
+	// the earlier scans of a multi-scan image
+	public void decode(JPEGHeader header) {
+		long startNanos = System.nanoTime();
+		DecodeStageEvent event = DecodeStageEvent.start();
+		decodeScan(header);
+		endStage(event, startNanos, DecoderCounters.ENTROPY, 0, header, header.getDataLength(),
+				header.isMultiScan() ? scanMCUCount(header) : regionMCUCount());
+		scanCount++;
+		if (scanListener != null) {
+			scanListener.scanDecoded(this, header, scanCount);
+		}
+	}
+
+	private void decodeScan(JPEGHeader header) {
+		checkHuffmanTables(header);
+		computeRegion(header);
+		allocateCoefficients(header);
+
+		// MCUs after the region do not matter
+		int lastMCU = Math.min(scanMCUCount(header), lastMCURow * scanMCUsPerRow(header));
+		int restartInterval = header.getRestartInterval();
+		if (restartInterval == 0) {
+			decodeInterval(header, header.getDataOffset(), header.getDataLength(), 0, lastMCU,
+					new BitInputStream(header.getData(), 0, 0), new int[header.getComponents().size()], new int[1],
+					new int[64]);
+			return;
+		}
+
+		// restart intervals are independent since DC predictors and EOB runs are reset at each RSTn,
+		// those outside the region are not decoded at all
+		int[][] intervals = splitRestartIntervals(header);
+		int[] intervalStarts = intervals[0];
+		int[] intervalEnds = intervals[1];
+		RangeTask.run(options.getPool(), 0, intervalStarts.length, 1, (from, to) -> {
+			BitInputStream bitInputStream = new BitInputStream(header.getData(), 0, 0);
+			int[] lastDCs = new int[header.getComponents().size()];
+			int[] endOfBandRun = new int[1];
+			int[] scratch = new int[64];
+			for (int i = from; i < to; i++) {
+				int firstMCU = i * restartInterval;
+				int intervalLastMCU = Math.min(firstMCU + restartInterval, lastMCU);
+				if (firstMCU < intervalLastMCU
+						&& (header.isMultiScan() || intersectsRegion(header, firstMCU, intervalLastMCU))) {
+					decodeInterval(header, intervalStarts[i], intervalEnds[i] - intervalStarts[i], firstMCU,
+							intervalLastMCU, bitInputStream, lastDCs, endOfBandRun, scratch);
+				}
+			}
+		});
+	}
+
+	// the tables the scan decodes with must have been defined
+	private void checkHuffmanTables(JPEGHeader header) {
+		boolean usesDC = !header.isProgressive()
+				|| (header.getStartOfSpectralSelection() == 0 && header.getSuccApprox() >> 4 == 0);
+		boolean usesAC = !header.isProgressive() || header.getStartOfSpectralSelection() > 0;
+		for (Component component : header.getScanComponents()) {
+			int DCID = component.getDCHuffmanTableID();
+			int ACID = component.getACHuffmanTableID();
+			if ((usesDC && (DCID > 3 || header.getDCHuffmanTable()[DCID] == null))
+					|| (usesAC && (ACID > 3 || header.getACHuffmanTable()[ACID] == null))) {
+				throw new JPEGException("missing huffman table for component " + component.getID());
+			}
+		}
+	}
+
+	// the tables the inverse transforms dequantize with must have been defined
+	private void checkQuantizationTables(JPEGHeader header) {
+		for (int k = 1; k < header.getComponents().size(); k++) {
+			Component component = header.getComponents().get(k);
+			int ID = component.getQuantizedTableID();
+			if (ID > 3 || header.getQuantizationTableByID(ID) == null) {
+				throw new JPEGException("missing quantization table for component " + component.getID());
+			}
+		}
+	}
+
+	// a scan of a single component is not interleaved: its MCUs are the blocks of the component that
+	// cover the image, row by row, rather than whole MCUs of the frame
+	private boolean isInterleaved(JPEGHeader header) {
+		return header.getScanComponents().size() > 1;
+	}
+
+	// blocks per line of the component in a non-interleaved scan
+	private int scanBlocksPerLine(JPEGHeader header, Component component) {
+		int width = (header.getWidth() * component.getHorizontalSamplingFactor()
+				+ header.getHorizontalSamplingFactor() - 1) / header.getHorizontalSamplingFactor();
+		return (width + 7) / 8;
+	}
+
+	private int scanBlocksPerColumn(JPEGHeader header, Component component) {
+		int height = (header.getHeight() * component.getVerticalSamplingFactor()
+				+ header.getVerticalSamplingFactor() - 1) / header.getVerticalSamplingFactor();
+		return (height + 7) / 8;
+	}
+
+	private int scanMCUCount(JPEGHeader header) {
+		if (isInterleaved(header)) {
+			return header.getHorizontalMCUCount() * header.getVerticalMCUCount();
+		}
+		Component component = header.getScanComponents().get(0);
+		return scanBlocksPerLine(header, component) * scanBlocksPerColumn(header, component);
+	}
+
+	// MCUs of the scan per MCU row of the frame
+	private int scanMCUsPerRow(JPEGHeader header) {
+		if (isInterleaved(header)) {
+			return header.getHorizontalMCUCount();
+		}
+		Component component = header.getScanComponents().get(0);
+		return scanBlocksPerLine(header, component) * component.getVerticalSamplingFactor();
+	}
+
+	public void decodeFused(JPEGHeader header) {
+		decodeFused(header, null);
+	}
+
+	// decode what parseJPEGHeaderAndDecode leaves: the last (or only) scan, then the IDCT and the color
+	// conversion. The rows go to listener when it is set, while decoding for a single scan image, and are
+	// in pixels otherwise
+	public void decodeRest(JPEGHeader header, ScanlineListener listener) {
+		if (options.isFused() && !header.isMultiScan() && scanCount == 0 && !needsContextLines(header)) {
+			decodeFused(header, listener);
+			finishImage(header);
+			return;
+		}
+		decode(header);
+		IDCT(header); // dequantizes while transforming
+		YCbCr2RGB(header);
+		if (listener != null) {
+			long startNanos = System.nanoTime();
+			DecodeStageEvent event = DecodeStageEvent.start();
+			listener.start(outputWidth, outputHeight, outputChannels);
+			listener.rows(pixels, 0, outputHeight);
+			listener.end();
+			endStage(event, startNanos, DecoderCounters.WRITE, 0, header, outputBytes(), regionMCUCount());
+		}
+		finishImage(header);
+	}
+
+	// MCUs covering the output
+	private long regionMCUCount() {
+		return (long) (lastMCUColumn - firstMCUColumn) * (lastMCURow - firstMCURow);
+	}
+
+	private long outputBytes() {
+		return (long) outputWidth * outputHeight * outputChannels;
+	}
+
+	// parseJPEGHeaderAndDecode brackets the parsing of a file of inputBytes with these, the scans it decodes
+	// meanwhile count as entropy decoding and not as parsing
+	public void startParse(long inputBytes) {
+		this.inputBytes = inputBytes;
+		this.decodeEvent = DecodeEvent.start();
+		parseStartNanos = System.nanoTime();
+		parseNestedNanos = stageNanos[DecoderCounters.ENTROPY];
+		parseEvent = DecodeStageEvent.start();
+	}
+
+	public void endParse(JPEGHeader header) {
+		long nestedNanos = stageNanos[DecoderCounters.ENTROPY] - parseNestedNanos;
+		endStage(parseEvent, parseStartNanos, DecoderCounters.PARSE, nestedNanos, header, inputBytes, 0);
+		parseEvent = null;
+	}
+
+	// count the time since startNanos, less excludedNanos counted by other stages, for stage and record the
+	// event, null when no recording wants it
+	private void endStage(DecodeStageEvent event, long startNanos, int stage, long excludedNanos, JPEGHeader header,
+			long bytes, long mcuCount) {
+		stageNanos[stage] += System.nanoTime() - startNanos - excludedNanos;
+		if (event == null) {
+			return;
+		}
+		event.end();
+		if (event.shouldCommit()) {
+			event.stage = DecoderCounters.STAGE_NAMES[stage];
+			event.width = header.getWidth();
+			event.height = header.getHeight();
+			event.sampling = DecodeEvent.sampling(header);
+			event.bytes = bytes;
+			event.mcuCount = mcuCount;
+			event.commit();
+		}
+	}
+
+	// the last row is out: add the image to DecoderCounters and record it
+	private void finishImage(JPEGHeader header) {
+		DecoderCounters.add(inputBytes, (long) outputWidth * outputHeight, stageNanos);
+		DecodeEvent event = decodeEvent != null ? decodeEvent : DecodeEvent.start();
+		if (event != null) {
+			event.end();
+			if (event.shouldCommit()) {
+				event.width = header.getWidth();
+				event.height = header.getHeight();
+				event.outputWidth = outputWidth;
+				event.outputHeight = outputHeight;
+				event.sampling = DecodeEvent.sampling(header);
+				event.progressive = header.isProgressive();
+				event.inputBytes = inputBytes;
+				event.mcuCount = regionMCUCount();
+				event.parseTime = stageNanos[DecoderCounters.PARSE];
+				event.entropyTime = stageNanos[DecoderCounters.ENTROPY];
+				event.IDCTTime = stageNanos[DecoderCounters.IDCT];
+				event.fusedTime = stageNanos[DecoderCounters.FUSED];
+				event.colorTime = stageNanos[DecoderCounters.COLOR];
+				event.writeTime = stageNanos[DecoderCounters.WRITE];
+				event.warnings = warnings.isEmpty() ? null : String.join("; ", warnings);
+				event.commit();
+			}
+		}
+		Arrays.fill(stageNanos, 0);
+		inputBytes = 0;
+		decodeEvent = null;
+	}
+
+	// decode the scan one MCU row at a time, each MCU is inverse transformed (and dequantized) right after
+	// its entropy decoding and each MCU row is color converted before the next one is decoded. Without a
+	// listener the rows go to pixels, with one they go to a band of one MCU row handed to the listener
+	// as soon as it is converted, so memory only grows with the image width
+	public void decodeFused(JPEGHeader header, ScanlineListener listener) {
+		long startNanos = System.nanoTime();
+		DecodeStageEvent event = DecodeStageEvent.start();
+		// the color conversion and writing of each row are timed apart for DecoderCounters, once per MCU row
+		long colorNanos = 0;
+		long writeNanos = 0;
+		long time = startNanos;
+		checkHuffmanTables(header);
+		checkQuantizationTables(header);
+		computeRegion(header);
+		int linesPerMCURow = blockSize() * header.getVerticalSamplingFactor();
+		byte[] band;
+		if (listener == null) {
+			allocatePixels(header);
+			band = pixels;
+		} else {
+			this.band = reuse(this.band, outputWidth * linesPerMCURow * outputChannels);
+			band = this.band;
+			time = System.nanoTime();
+			listener.start(outputWidth, outputHeight, outputChannels);
+			writeNanos += System.nanoTime() - time;
+		}
+		IDCTEngine engine = IDCTEngine;
+		int size = blockSize();
+		int[] workspace = new int[64];
+		int[] scratch = new int[64];
+		Upsampler[] upsamplers = upsamplers(header);
+		int[] chromaColumns = chromaColumns(header, upsamplers);
+		byte[][] lines = newUpsampledLines(header, upsamplers);
+		if (rowPlanes == null || rowPlanes.length != header.getComponents().size()) {
+			rowPlanes = new int[header.getComponents().size()][];
+			rowEndOfBlocks = new byte[header.getComponents().size()][];
+			rowSamples = new byte[header.getComponents().size()][];
+		}
+		for (int k = 1; k < header.getComponents().size(); k++) {
+			Component component = header.getComponents().get(k);
+			int blockCount = planeBlocksPerLine(component) * component.getVerticalSamplingFactor();
+			rowPlanes[k] = reuse(rowPlanes[k], blockCount * 64);
+			rowEndOfBlocks[k] = reuse(rowEndOfBlocks[k], blockCount);
+			rowSamples[k] = reuse(rowSamples[k], blockCount * size * size);
+		}
+
+		int columns = header.getHorizontalMCUCount();
+		int mcuCount = columns * header.getVerticalMCUCount();
+		int restartInterval = header.getRestartInterval();
+		int[][] intervals = restartInterval == 0
+				? new int[][] { { header.getDataOffset() }, { header.getDataOffset() + header.getDataLength() } }
+				: splitRestartIntervals(header);
+		// with restart markers decoding starts at the interval holding the first MCU of the region
+		int firstMCU = restartInterval == 0 ? 0 : firstMCURow * columns / restartInterval * restartInterval;
+		BitInputStream bitInputStream = new BitInputStream(header.getData(), 0, 0);
+		int[] lastDCs = new int[header.getComponents().size()];
+		boolean skipInterval = false;
+
+		for (int i = firstMCU / columns; i < lastMCURow; i++) {
+			if (i >= firstMCURow) {
+				for (int k = 1; k < header.getComponents().size(); k++) {
+					Arrays.fill(rowPlanes[k], 0);
+				}
+			}
+
+			for (int j = 0; j < columns; j++) {
+				int mcu = i * columns + j;
+				if (mcu < firstMCU) {
+					continue;
+				}
+				if (mcu == firstMCU || (restartInterval != 0 && mcu % restartInterval == 0)) {
+					int interval = restartInterval == 0 ? 0 : mcu / restartInterval;
+					if (interval < intervals[0].length) {
+						bitInputStream.reset(header.getData(), intervals[0][interval],
+								intervals[1][interval] - intervals[0][interval]);
+					} else {
+						bitInputStream.reset(header.getData(), 0, 0);
+					}
+					Arrays.fill(lastDCs, 0);
+					skipInterval = restartInterval != 0
+							&& !intersectsRegion(header, mcu, Math.min(mcu + restartInterval, mcuCount));
+				}
+				if (skipInterval) {
+					continue;
+				}
+				if (!inRegion(i, j)) {
+					skipMCU(header, bitInputStream, lastDCs, scratch);
+					continue;
+				}
+				decodeMCU(header, bitInputStream, lastDCs, i, j, rowPlanes, rowEndOfBlocks, i);
+
+				for (int k = 1; k < header.getComponents().size(); k++) {
+					Component component = header.getComponents().get(k);
+					QuantizationTable quantizationTable = header.getQuantizationTableByID(component.getQuantizedTableID());
+					int stride = planeBlocksPerLine(component) * size;
+					for (int v = 0; v < component.getVerticalSamplingFactor(); v++) {
+						for (int h = 0; h < component.getHorizontalSamplingFactor(); h++) {
+							int horizontalOffset = (j - firstMCUColumn) * component.getHorizontalSamplingFactor() + h;
+							int blockIndex = v * planeBlocksPerLine(component) + horizontalOffset;
+							ScaledIDCT.IDCT(engine, size, rowPlanes[k], blockIndex * 64, rowEndOfBlocks[k][blockIndex],
+									quantizationTable, workspace, rowSamples[k], v * size * stride + horizontalOffset * size,
+									stride);
+						}
+					}
+				}
+			}
+
+			if (i < firstMCURow) {
+				continue;
+			}
+			time = System.nanoTime();
+			if (listener == null) {
+				YCbCr2RGBRows(header, rowSamples, chromaColumns, upsamplers, lines, i, i, i + 1, band, outputY);
+				colorNanos += System.nanoTime() - time;
+				continue;
+			}
+			int firstLine = Math.max(i * linesPerMCURow, outputY);
+			int lastLine = Math.min((i + 1) * linesPerMCURow, outputY + outputHeight);
+			YCbCr2RGBRows(header, rowSamples, chromaColumns, upsamplers, lines, i, i, i + 1, band, firstLine);
+			long converted = System.nanoTime();
+			listener.rows(band, firstLine - outputY, lastLine - firstLine);
+			colorNanos += converted - time;
+			writeNanos += System.nanoTime() - converted;
+		}
+		if (listener != null) {
+			time = System.nanoTime();
+			listener.end();
+			writeNanos += System.nanoTime() - time;
+		}
+		stageNanos[DecoderCounters.COLOR] += colorNanos;
+		stageNanos[DecoderCounters.WRITE] += writeNanos;
+		endStage(event, startNanos, DecoderCounters.FUSED, colorNanos + writeNanos, header, outputBytes(), regionMCUCount());
+	}
+
+	// locate the entropy coded data of each restart interval in the scan as {starts, ends}
+	private int[][] splitRestartIntervals(JPEGHeader header) {
+		int mcuCount = scanMCUCount(header);
+		int intervalCount = (mcuCount + header.getRestartInterval() - 1) / header.getRestartInterval();
+		int[] intervalStarts = new int[intervalCount];
+		int[] intervalEnds = new int[intervalCount];
+		byte[] data = header.getData();
+		int end = header.getDataOffset() + header.getDataLength();
+		int count = 0;
+		intervalStarts[count] = header.getDataOffset();
+
+		for (int i = header.getDataOffset(); i < end - 1 && count < intervalCount - 1; i++) {
+			if (data[i] != (byte) 0xFF) {
+				continue;
+			}
+			int byteData = data[i + 1] & 0xFF;
+			if (byteData == 0xFF) { // fill byte before a marker
+				continue;
+			}
+			if (byteData >= 0xD0 && byteData <= 0xD7) {
+				intervalEnds[count++] = i;
+				intervalStarts[count] = i + 2;
+			}
+			i++; // the byte after 0xFF is never the start of another marker
+		}
+		intervalEnds[count++] = end;
+
+		if (count < intervalCount) {
+			// reported with the file by the caller, the blocks of the missing intervals stay zero
+			warn("missing restart markers, " + (intervalCount - count) + " intervals are not decoded");
+		}
+		return new int[][] { Arrays.copyOf(intervalStarts, count), Arrays.copyOf(intervalEnds, count) };
+	}
+
+	// entropy decode MCUs [firstMCU, lastMCU) from data that starts with reset DC predictors and EOB run, the
+	// reader and the arrays are passed in to be reused from one interval to the next
+	private void decodeInterval(JPEGHeader header, int offset, int length, int firstMCU, int lastMCU,
+			BitInputStream bitInputStream, int[] lastDCs, int[] endOfBandRun, int[] scratch) {
+		bitInputStream.reset(header.getData(), offset, length);
+		Arrays.fill(lastDCs, 0);
+		endOfBandRun[0] = 0;
+		if (header.isMultiScan()) {
+			decodeScanInterval(header, bitInputStream, lastDCs, endOfBandRun, firstMCU, lastMCU);
+			return;
+		}
+
+		for (int mcu = firstMCU; mcu < lastMCU; mcu++) {
+			int i = mcu / header.getHorizontalMCUCount();
+			int j = mcu % header.getHorizontalMCUCount();
+			if (inRegion(i, j)) {
+				decodeMCU(header, bitInputStream, lastDCs, i, j, coefficients, endOfBlocks, firstMCURow);
+			} else {
+				skipMCU(header, bitInputStream, lastDCs, scratch);
+			}
+		}
+	}
+
+	// entropy decode MCUs [firstMCU, lastMCU) of a scan of a multi-scan image, every block is stored since
+	// the planes cover whole MCU rows from the top
+	private void decodeScanInterval(JPEGHeader header, BitInputStream bitInputStream, int[] lastDCs,
+			int[] endOfBandRun, int firstMCU, int lastMCU) {
+		if (!isInterleaved(header)) {
+			Component component = header.getScanComponents().get(0);
+			int blocksPerLine = scanBlocksPerLine(header, component);
+			for (int mcu = firstMCU; mcu < lastMCU; mcu++) {
+				int blockIndex = mcu / blocksPerLine * planeBlocksPerLine(component) + mcu % blocksPerLine;
+				decodeScanBlock(header, component, bitInputStream, lastDCs, endOfBandRun, blockIndex);
+			}
+			return;
+		}
+
+		for (int mcu = firstMCU; mcu < lastMCU; mcu++) {
+			int i = mcu / header.getHorizontalMCUCount();
+			int j = mcu % header.getHorizontalMCUCount();
+			for (Component component : header.getScanComponents()) {
+				int vMax = component.getVerticalSamplingFactor();
+				int hMax = component.getHorizontalSamplingFactor();
+				for (int v = 0; v < vMax; v++) {
+					for (int h = 0; h < hMax; h++) {
+						int blockIndex = (i * vMax + v) * planeBlocksPerLine(component) + j * hMax + h;
+						decodeScanBlock(header, component, bitInputStream, lastDCs, endOfBandRun, blockIndex);
+					}
+				}
+			}
+		}
+	}
+
+	// decode one block of a multi-scan image by the kind of the scan, the end of block only grows
+	private void decodeScanBlock(JPEGHeader header, Component component, BitInputStream bitInputStream,
+			int[] lastDCs, int[] endOfBandRun, int blockIndex) {
+		int k = component.getID();
+		int[] data = coefficients[k];
+		int offset = blockIndex * 64;
+		int start = header.getStartOfSpectralSelection();
+		int end = header.getEndOfSpectralSelection();
+		int high = header.getSuccApprox() >> 4;
+		int low = header.getSuccApprox() & 0x0F;
+		int endOfBlock;
+		if (!header.isProgressive()) {
+			endOfBlock = decodeBlock(header, component, k, bitInputStream, lastDCs, data, offset);
+		} else if (start == 0) {
+			if (end != 0) {
+				throw new JPEGException("invalid progressive scan: DC and AC coefficients in one scan");
+			}
+			if (high == 0) {
+				decodeDCFirst(header, component, k, bitInputStream, lastDCs, data, offset, low);
+			} else if (bitInputStream.getBits(1) != 0) {
+				data[offset] |= 1 << low;
+			}
+			endOfBlock = 0;
+		} else {
+			if (end > 63 || start > end) {
+				throw new JPEGException("invalid progressive scan: spectral selection " + start + ".." + end);
+			}
+			HuffmanTable acTable = header.getACHuffmanTable()[component.getACHuffmanTableID()];
+			if (high == 0) {
+				endOfBlock = decodeACFirst(header, acTable, bitInputStream, endOfBandRun, data, offset, start, end, low);
+			} else {
+				endOfBlock = decodeACRefine(header, acTable, bitInputStream, endOfBandRun, data, offset, start, end, low);
+			}
+		}
+		endOfBlocks[k][blockIndex] = (byte) Math.max(endOfBlocks[k][blockIndex], endOfBlock);
+	}
+
+	// first scan of the DC coefficients, they are sent shifted right by low bits
+	private void decodeDCFirst(JPEGHeader header, Component component, int k, BitInputStream bitInputStream,
+			int[] lastDCs, int[] data, int offset, int low) {
+		int dcLength = huffmanDecode(header.getDCHuffmanTable()[component.getDCHuffmanTableID()], bitInputStream);
+		if (dcLength < 0 || dcLength > 11) {
+			throw new JPEGException("invalid DC coefficient");
+		}
+		int dcCoeff = bitInputStream.getBits(dcLength);
+		if (dcLength > 0 && dcCoeff < (1 << (dcLength - 1))) {
+			dcCoeff = dcCoeff - (1 << dcLength) + 1;
+		}
+		lastDCs[k] += dcCoeff;
+		data[offset] = lastDCs[k] << low;
+	}
+
+	// first scan of the AC coefficients [start, end], returns the zigzag index of the last one written.
+	// An EOB run ends this block and the next endOfBandRun[0] blocks of the band
+	private int decodeACFirst(JPEGHeader header, HuffmanTable acTable, BitInputStream bitInputStream,
+			int[] endOfBandRun, int[] data, int offset, int start, int end, int low) {
+		if (endOfBandRun[0] > 0) {
+			endOfBandRun[0]--;
+			return 0;
+		}
+		int[] index2ZigZag = header.getIndex2ZigZagMap();
+		int endOfBlock = 0;
+		for (int idx = start; idx <= end; idx++) {
+			int symbol = huffmanDecode(acTable, bitInputStream);
+			if (symbol < 0) {
+				throw new JPEGException("invalid AC coefficent");
+			}
+			int run = symbol >> 4;
+			int acLength = symbol & 0x0F;
+			if (acLength == 0) {
+				if (run < 15) { // EOBn
+					endOfBandRun[0] = (1 << run) - 1;
+					if (run > 0) {
+						endOfBandRun[0] += bitInputStream.getBits(run);
+					}
+					break;
+				}
+				idx += 15; // ZRL, the 16th zero is skipped by the loop
+				continue;
+			}
+			idx += run;
+			if (idx > end) {
+				throw new JPEGException("preceding zero count exceeding spectral selection");
+			}
+			int acCoeff = bitInputStream.getBits(acLength);
+			if (acCoeff < (1 << (acLength - 1))) {
+				acCoeff = acCoeff - (1 << acLength) + 1;
+			}
+			data[offset + index2ZigZag[idx]] = acCoeff << low;
+			endOfBlock = idx;
+		}
+		return endOfBlock;
+	}
+
+	// refinement scan of the AC coefficients [start, end] (libjpeg's decode_mcu_AC_refine): coefficients that
+	// are already non-zero get one correction bit each, zero ones may become +-1 << low. Returns the zigzag
+	// index of the last coefficient made non-zero
+	private int decodeACRefine(JPEGHeader header, HuffmanTable acTable, BitInputStream bitInputStream,
+			int[] endOfBandRun, int[] data, int offset, int start, int end, int low) {
+		int[] index2ZigZag = header.getIndex2ZigZagMap();
+		int positive = 1 << low;
+		int negative = -1 << low;
+		int endOfBlock = 0;
+		int idx = start;
+
+		if (endOfBandRun[0] == 0) {
+			for (; idx <= end; idx++) {
+				int symbol = huffmanDecode(acTable, bitInputStream);
+				if (symbol < 0) {
+					throw new JPEGException("invalid AC coefficent");
+				}
+				int run = symbol >> 4;
+				int acLength = symbol & 0x0F;
+				int value = 0;
+				if (acLength != 0) {
+					if (acLength != 1) {
+						throw new JPEGException("invalid AC refinement coefficient");
+					}
+					value = bitInputStream.getBits(1) != 0 ? positive : negative;
+				} else if (run != 15) { // EOBn, the rest of the band is refined below
+					endOfBandRun[0] = 1 << run;
+					if (run > 0) {
+						endOfBandRun[0] += bitInputStream.getBits(run);
+					}
+					break;
+				}
+
+				// pass run zero coefficients (16 for ZRL), refining the non-zero ones on the way
+				while (idx <= end) {
+					int index = offset + index2ZigZag[idx];
+					if (data[index] != 0) {
+						refine(bitInputStream, data, index, positive, negative);
+					} else if (--run < 0) {
+						break;
+					}
+					idx++;
+				}
+				if (value != 0 && idx <= end) {
+					data[offset + index2ZigZag[idx]] = value;
+					endOfBlock = idx;
+				}
+			}
+		}
+
+		if (endOfBandRun[0] > 0) {
+			for (; idx <= end; idx++) {
+				int index = offset + index2ZigZag[idx];
+				if (data[index] != 0) {
+					refine(bitInputStream, data, index, positive, negative);
+				}
+			}
+			endOfBandRun[0]--;
+		}
+		return endOfBlock;
+	}
+
+	// apply a correction bit to a non-zero coefficient, away from zero
+	private static void refine(BitInputStream bitInputStream, int[] data, int index, int positive, int negative) {
+		if (bitInputStream.getBits(1) != 0 && (data[index] & positive) == 0) {
+			data[index] += data[index] >= 0 ? positive : negative;
+		}
+	}
+
+	// entropy decode MCU (i, j) of the region into planes whose first block row belongs to MCU row planeFirstRow
+	private void decodeMCU(JPEGHeader header, BitInputStream bitInputStream, int[] lastDCs, int i, int j,
+			int[][] planes, byte[][] endOfBlockPlanes, int planeFirstRow) {
+		for (int k = 1; k < header.getComponents().size(); k++) {
+			Component component = header.getComponents().get(k);
+			int vMax = component.getVerticalSamplingFactor();
+			int hMax = component.getHorizontalSamplingFactor();
+
+			for (int v = 0; v < vMax; v++) {
+				for (int h = 0; h < hMax; h++) {
+					int verticalOffset = (i - planeFirstRow) * vMax + v;
+					int horizontalOffset = (j - firstMCUColumn) * hMax + h;
+					int blockIndex = verticalOffset * planeBlocksPerLine(component) + horizontalOffset;
+					endOfBlockPlanes[k][blockIndex] = (byte) decodeBlock(header, component, k, bitInputStream, lastDCs,
+							planes[k], blockIndex * 64);
+				}
+			}
+		}
+	}
+
+	// entropy decode an MCU outside the region, only the DC predictors are kept and the
+	// coefficients go to scratch
+	private void skipMCU(JPEGHeader header, BitInputStream bitInputStream, int[] lastDCs, int[] scratch) {
+		for (int k = 1; k < header.getComponents().size(); k++) {
+			Component component = header.getComponents().get(k);
+			int blockCount = component.getVerticalSamplingFactor() * component.getHorizontalSamplingFactor();
+			for (int block = 0; block < blockCount; block++) {
+				decodeBlock(header, component, k, bitInputStream, lastDCs, scratch, 0);
+			}
+		}
+	}
+
+	// entropy decode one block of the k-th component into data[offset..offset + 63] in natural order,
+	// returns the zigzag index of the last coefficient written
+	private int decodeBlock(JPEGHeader header, Component component, int k, BitInputStream bitInputStream,
+			int[] lastDCs, int[] data, int offset) {
+		int[] index2ZigZag = header.getIndex2ZigZagMap();
+		int lastDC = lastDCs[k];
+		int idx = 0;
+		int endOfBlock = 0;
+
+		// Decode DC
+		int dcLength = huffmanDecode(
+				header.getDCHuffmanTable()[component.getDCHuffmanTableID()],
+				bitInputStream);
+		if (dcLength < 0 || dcLength > 11) { // -1 for a code missing from the table
+			throw new JPEGException("invalid DC coefficient");
+		}
+		int dcCoeff = bitInputStream.getBits(dcLength);
+		if (dcLength > 0 && dcCoeff < (1 << (dcLength - 1))) {
+			dcCoeff = dcCoeff - (1 << dcLength) + 1;
+		}
+		int finalDCCoeff = dcCoeff + lastDC;
+		data[offset + index2ZigZag[idx]] = finalDCCoeff;
+		lastDCs[k] = finalDCCoeff;
+		idx++;
+
+		// decode AC
+		HuffmanTable acTable = header.getACHuffmanTable()[component.getACHuffmanTableID()];
+		while (idx < 64) {
+			// short code with its magnitude bits resolved in one lookup
+			int fast = acTable.getFastAC()[bitInputStream.peek(HuffmanTable.LOOKAHEAD_BITS)];
+			if (fast != 0) {
+				bitInputStream.skip(fast & 0x0F);
+				idx += (fast >> 4) & 0x0F;
+				if (idx >= 64) {
+					throw new JPEGException("preceding zero count exceeding 8x8 block");
+				}
+				data[offset + index2ZigZag[idx]] = fast >> 8;
+				endOfBlock = idx;
+				idx++;
+				continue;
+			}
+
+			int symbol = huffmanDecode(acTable, bitInputStream);
+			if (symbol < 0) {
+				throw new JPEGException("invalid AC coefficent");
+			}
+
+			if (symbol == 0x00) { // 63 AC coefficient will be zero
+				break;
+			}
+
+			// ZRL(0xF0) skips 15 zeros here and writes the 16th below
+			int precedingZeroCount = symbol >> 4;
+			if (idx + precedingZeroCount >= 64) {
+				throw new JPEGException("preceding zero count exceeding 8x8 block");
+			}
+			idx += precedingZeroCount; // planes start zeroed
+
+			int acLength = symbol & 0x0F;
+			if (acLength > 10) {
+				throw new JPEGException("invalid AC coefficient");
+			}
+			int acCoeff = 0;
+			if (acLength != 0) {
+				acCoeff = bitInputStream.getBits(acLength);
+				if (acCoeff < (1 << (acLength - 1))) {
+					acCoeff = acCoeff - (1 << acLength) + 1;
+				}
+			}
+			data[offset + index2ZigZag[idx]] = acCoeff;
+			endOfBlock = idx;
+			idx++;
+		}
+		return endOfBlock;
+	}
+
+	private int huffmanDecode(HuffmanTable huffmanTable, BitInputStream bitInputStream) {
+		int entry = huffmanTable.getLookup()[bitInputStream.peek(HuffmanTable.LOOKAHEAD_BITS)];
+		if (entry != 0) {
+			bitInputStream.skip(entry >> 8);
+			return entry & 0xFF;
+		}
+
+		// code is longer than the lookahead, compare against the largest code of each length
+		int bits = bitInputStream.peek(16);
+		for (int length = HuffmanTable.LOOKAHEAD_BITS + 1; length <= 16; length++) {
+			int code = bits >> (16 - length);
+			if (code <= huffmanTable.getMaxCode()[length]) {
+				bitInputStream.skip(length);
+				return huffmanTable.getSymbols()[huffmanTable.getValueOffset()[length] + code];
+			}
+		}
+
+		return -1;
+	}
+
+	// run body over the MCU rows of the region, split across the pool unless the output is too small to pay off
+	private void forEachMCURow(JPEGHeader header, RangeTask.Body body) {
+		if (options.getParallelism() <= 1 || outputWidth * outputHeight < options.getMinParallelPixels()) {
+			body.run(firstMCURow, lastMCURow);
+			return;
+		}
+		int grain = Math.max(1, (lastMCURow - firstMCURow) / (options.getParallelism() * 4));
+		RangeTask.run(options.getPool(), firstMCURow, lastMCURow, grain, body);
+	}
+
+
+	// render the coefficients decoded so far at 1/scaleDenominator of the size, e.g. between the scans of a
+	// progressive image. A decoder sharing the coefficient planes runs the scaled IDCT and the color conversion,
+	// so the cost only depends on the preview size: a 1/8 preview only reads the DC coefficients
+	public void preview(JPEGHeader header, int scaleDenominator, ScanlineListener listener) {
+		DecoderOptions previewOptions = options.copy();
+		previewOptions.setScaleDenominator(scaleDenominator);
+		JPEGDecoder previewDecoder = new JPEGDecoder(previewOptions);
+		previewDecoder.coefficients = coefficients;
+		previewDecoder.endOfBlocks = endOfBlocks;
+		previewDecoder.computeRegion(header);
+		previewDecoder.IDCT(header);
+		previewDecoder.YCbCr2RGB(header);
+
+		listener.start(previewDecoder.getOutputWidth(), previewDecoder.getOutputHeight(),
+				previewDecoder.getOutputChannels());
+		listener.rows(previewDecoder.getPixels(), 0, previewDecoder.getOutputHeight());
+		listener.end();
+	}
+
+	// dequantization is folded into the transform, coefficients stay quantized
+	public void IDCT(JPEGHeader header) {
+		long startNanos = System.nanoTime();
+		DecodeStageEvent event = DecodeStageEvent.start();
+		checkQuantizationTables(header);
+		int size = blockSize();
+		if (samples == null || samples.length != header.getComponents().size()) {
+			samples = new byte[header.getComponents().size()][];
+		}
+		for (int k = 1; k < header.getComponents().size(); k++) {
+			Component component = header.getComponents().get(k);
+			samples[k] = reuse(samples[k], planeBlocksPerLine(component) * planeBlocksPerColumn(component) * size * size);
+		}
+		forEachMCURow(header, (from, to) -> IDCTRows(header, from, to));
+		endStage(event, startNanos, DecoderCounters.IDCT, 0, header, outputBytes(), regionMCUCount());
+	}
+
+	private void IDCTRows(JPEGHeader header, int firstRow, int lastRow) {
+		IDCTEngine engine = IDCTEngine;
+		int size = blockSize();
+		int[] workspace = new int[64];
+		for (int k = 1; k < header.getComponents().size(); k++) {
+			Component component = header.getComponents().get(k);
+			int[] componentData = coefficients[k];
+			QuantizationTable quantizationTable = header.getQuantizationTableByID(component.getQuantizedTableID());
+			int blocksPerLine = planeBlocksPerLine(component);
+			int stride = blocksPerLine * size;
+			int firstBlockRow = (firstRow - firstMCURow) * component.getVerticalSamplingFactor();
+			int lastBlockRow = (lastRow - firstMCURow) * component.getVerticalSamplingFactor();
+
+			for (int blockRow = firstBlockRow; blockRow < lastBlockRow; blockRow++) {
+				for (int blockColumn = 0; blockColumn < blocksPerLine; blockColumn++) {
+					int blockIndex = blockRow * blocksPerLine + blockColumn;
+					ScaledIDCT.IDCT(engine, size, componentData, blockIndex * 64, endOfBlocks[k][blockIndex],
+							quantizationTable, workspace, samples[k], blockRow * size * stride + blockColumn * size, stride);
+				}
+			}
+		}
+	}
+
+	public void YCbCr2RGB(JPEGHeader header) {
+		long startNanos = System.nanoTime();
+		DecodeStageEvent event = DecodeStageEvent.start();
+		allocatePixels(header);
+		Upsampler[] upsamplers = upsamplers(header);
+		int[] chromaColumns = chromaColumns(header, upsamplers);
+		forEachMCURow(header, (from, to) -> YCbCr2RGBRows(header, samples, chromaColumns, upsamplers,
+				newUpsampledLines(header, upsamplers), firstMCURow, from, to, pixels, outputY));
+		endStage(event, startNanos, DecoderCounters.COLOR, 0, header, outputBytes(), regionMCUCount());
+	}
+
+	// chroma plane column of each output column, or with upsamplers the column of the full resolution lines
+	private int[] chromaColumns(JPEGHeader header, Upsampler[] upsamplers) {
+		if (upsamplers != null) {
+			int[] columns = new int[outputWidth];
+			int firstColumn = outputX - firstMCUColumn * blockSize() * header.getHorizontalSamplingFactor();
+			for (int x = 0; x < outputWidth; x++) {
+				columns[x] = firstColumn + x;
+			}
+			return columns;
+		}
+		Component chromaComponent = header.getComponents().get(header.getComponents().size() > 3 ? 2 : 1);
+		int hChroma = chromaComponent.getHorizontalSamplingFactor();
+		int[] columns = ColorConverter.chromaColumns(outputX + outputWidth, hChroma, header.getHorizontalSamplingFactor());
+		int planeFirstColumn = firstMCUColumn * blockSize() * hChroma;
+		for (int x = 0; x < outputWidth; x++) {
+			columns[x] = columns[outputX + x] - planeFirstColumn;
+		}
+		return Arrays.copyOf(columns, outputWidth);
+	}
+
+	// upsamplers of the components sampled below the largest factors, or null when the luma is not subsampled,
+	// Cb and Cr are sampled alike and repeating their samples is what is asked for: the color conversion then
+	// reads the chroma planes directly through chromaColumns
+	private Upsampler[] upsamplers(JPEGHeader header) {
+		List<Component> components = header.getComponents();
+		if (components.size() <= 3) {
+			return null;
+		}
+		int hMax = header.getHorizontalSamplingFactor();
+		int vMax = header.getVerticalSamplingFactor();
+		int lineWidth = (lastMCUColumn - firstMCUColumn) * blockSize() * hMax;
+		Upsampler[] upsamplers = new Upsampler[4];
+		for (int k = 1; k <= 3; k++) {
+			Component component = components.get(k);
+			if (component.getHorizontalSamplingFactor() != hMax || component.getVerticalSamplingFactor() != vMax) {
+				upsamplers[k] = Upsampler.of(component.getHorizontalSamplingFactor(), component.getVerticalSamplingFactor(),
+						hMax, vMax, lineWidth, options.isFancyUpsampling());
+			}
+		}
+		Component cb = components.get(2);
+		Component cr = components.get(3);
+		boolean sameChroma = cb.getHorizontalSamplingFactor() == cr.getHorizontalSamplingFactor()
+				&& cb.getVerticalSamplingFactor() == cr.getVerticalSamplingFactor();
+		if (upsamplers[1] == null && sameChroma && (upsamplers[2] == null || upsamplers[2] instanceof FastUpsampler)) {
+			return null;
+		}
+		// the color conversion reads Cb and Cr at the same offsets, so either both or none are expanded
+		if (upsamplers[2] != null || upsamplers[3] != null) {
+			for (int k = 2; k <= 3; k++) {
+				if (upsamplers[k] == null) {
+					upsamplers[k] = new FastUpsampler(hMax, vMax, hMax, vMax, lineWidth);
+				}
+			}
+		}
+		return upsamplers;
+	}
+
+	// fancy upsampling of a component subsampled vertically reads the lines of the MCU rows above and below
+	private boolean needsContextLines(JPEGHeader header) {
+		Upsampler[] upsamplers = upsamplers(header);
+		if (upsamplers != null) {
+			for (Upsampler upsampler : upsamplers) {
+				if (upsampler != null && upsampler.needsContextLines()) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	// full resolution lines for each upsampled component, one set per thread
+	private byte[][] newUpsampledLines(JPEGHeader header, Upsampler[] upsamplers) {
+		if (upsamplers == null) {
+			return null;
+		}
+		int lineWidth = (lastMCUColumn - firstMCUColumn) * blockSize() * header.getHorizontalSamplingFactor();
+		byte[][] lines = new byte[4][];
+		for (int k = 1; k <= 3; k++) {
+			if (upsamplers[k] != null) {
+				lines[k] = new byte[lineWidth];
+			}
+		}
+		return lines;
+	}
+
+	// color convert the output lines of MCU rows [firstRow, lastRow) from sample planes whose first block row
+	// belongs to MCU row planeFirstRow, into output that starts with line outputFirstLine of the scaled image
+	private void YCbCr2RGBRows(JPEGHeader header, byte[][] planes, int[] chromaColumns, Upsampler[] upsamplers,
+			byte[][] lines, int planeFirstRow, int firstRow, int lastRow, byte[] output, int outputFirstLine) {
+		int width = outputWidth;
+		int size = blockSize();
+		int vMax = header.getVerticalSamplingFactor();
+		int firstLine = Math.max(firstRow * size * vMax, outputY);
+		int lastLine = Math.min(lastRow * size * vMax, outputY + outputHeight);
+		if (upsamplers != null) {
+			upsampleRows(header, planes, chromaColumns, upsamplers, lines, planeFirstRow, firstLine, lastLine, output,
+					outputFirstLine);
+			return;
+		}
+
+		Component yComponent = header.getComponents().get(1);
+		boolean hasChroma = header.getComponents().size() > 3;
+		Component chromaComponent = hasChroma ? header.getComponents().get(2) : yComponent;
+		int yStride = planeBlocksPerLine(yComponent) * size;
+		int yFirstColumn = outputX - firstMCUColumn * size * yComponent.getHorizontalSamplingFactor();
+		int chromaStride = planeBlocksPerLine(chromaComponent) * size;
+		int vChroma = chromaComponent.getVerticalSamplingFactor();
+		int yFirstLine = planeFirstRow * size * yComponent.getVerticalSamplingFactor();
+		int chromaFirstLine = planeFirstRow * size * vChroma;
+
+		for (int y = firstLine; y < lastLine; y++) {
+			int yRowOffset = (y - yFirstLine) * yStride + yFirstColumn;
+			if (outputChannels == 1) {
+				// gray output is the luma plane itself
+				System.arraycopy(planes[1], yRowOffset, output, (y - outputFirstLine) * width, width);
+				continue;
+			}
+			int pixelIndex = (y - outputFirstLine) * width * 3;
+			if (!hasChroma) {
+				colorConverter.convertGrayRow(planes[1], yRowOffset, output, pixelIndex, width);
+				continue;
+			}
+			int chromaRowOffset = (y * vChroma / vMax - chromaFirstLine) * chromaStride;
+			colorConverter.convertRow(planes[1], yRowOffset, planes[2], planes[3], chromaRowOffset, chromaColumns,
+					output, pixelIndex, width);
+		}
+	}
+
+	// lines [firstLine, lastLine) of the output when components need upsamplers: each of them is expanded to a
+	// full resolution line, the others are read in their plane
+	private void upsampleRows(JPEGHeader header, byte[][] planes, int[] chromaColumns, Upsampler[] upsamplers,
+			byte[][] lines, int planeFirstRow, int firstLine, int lastLine, byte[] output, int outputFirstLine) {
+		int size = blockSize();
+		int scaleDenominator = options.getScaleDenominator();
+		int hMax = header.getHorizontalSamplingFactor();
+		int vMax = header.getVerticalSamplingFactor();
+		int firstColumn = outputX - firstMCUColumn * size * hMax;
+		int planeFirstLine = planeFirstRow * size * vMax; // output line of the first plane line
+		int[] strides = new int[4];
+		int[] widths = new int[4];
+		int[] lineCounts = new int[4];
+		for (int k = 1; k <= 3; k++) {
+			Component component = header.getComponents().get(k);
+			int h = component.getHorizontalSamplingFactor();
+			int v = component.getVerticalSamplingFactor();
+			strides[k] = planeBlocksPerLine(component) * size;
+			// the samples of the image in the plane, like libjpeg's downsampled_width and downsampled_height, past
+			// which upsamplers repeat the edge samples. With a crop the planes hold an MCU more on each side when
+			// the upsamplers read around a sample, see computeRegion, and the fused decoding holds one MCU row
+			// but never reads lines around it
+			int imageWidth = (header.getWidth() * h + hMax * scaleDenominator - 1) / (hMax * scaleDenominator);
+			int imageHeight = (header.getHeight() * v + vMax * scaleDenominator - 1) / (vMax * scaleDenominator);
+			widths[k] = Math.min(strides[k], imageWidth - firstMCUColumn * size * h);
+			lineCounts[k] = Math.min((lastMCURow - planeFirstRow) * size * v, imageHeight - planeFirstRow * size * v);
+		}
+
+		for (int y = firstLine; y < lastLine; y++) {
+			int line = y - planeFirstLine;
+			byte[] luma = planes[1];
+			int lumaOffset = line * strides[1];
+			if (upsamplers[1] != null) {
+				upsamplers[1].upsample(planes[1], strides[1], widths[1], lineCounts[1], line, lines[1]);
+				luma = lines[1];
+				lumaOffset = 0;
+			}
+			byte[] cb = planes[2];
+			byte[] cr = planes[3];
+			int chromaOffset = line * strides[2];
+			if (upsamplers[2] != null) {
+				upsamplers[2].upsample(planes[2], strides[2], widths[2], lineCounts[2], line, lines[2]);
+				upsamplers[3].upsample(planes[3], strides[3], widths[3], lineCounts[3], line, lines[3]);
+				cb = lines[2];
+				cr = lines[3];
+				chromaOffset = 0;
+			}
+			colorConverter.convertRow(luma, lumaOffset + firstColumn, cb, cr, chromaOffset, chromaColumns, output,
+					(y - outputFirstLine) * outputWidth * 3, outputWidth);
+		}
+	}
+}
+
+// receives the decoded image of JPEGDecoder.decodeFused band by band from top to bottom
+interface ScanlineListener {
+	// output size, called before the first band. channels is 1 for gray lines and 3 for color ones
+	void start(int width, int height, int channels);
+
+	// lines [firstLine, firstLine + lineCount) of the output, width * channels bytes each from the start of
+	// band, the band is overwritten by the next one once this returns
+	void rows(byte[] band, int firstLine, int lineCount);
+
+	void end();
+}
+
+// writes the bands of a ScanlineListener to a channel through one large buffer. Formats storing the last
+// line first get it when the channel is seekable: the buffer is filled from its end and written at its
+// place in the file
+abstract class ImageWriter implements ScanlineListener {
+	static final int BUFFER_SIZE = 1 << 18;
+
+	WritableByteChannel channel;
+	ByteBuffer buffer;
+	int width;
+	int height;
+	int channels;
+	int lineSize; // bytes per line in the file
+	int linesPerBuffer;
+	long dataPosition; // channel position of the first line in the file
+	int bufferFirstLine; // image line of the first buffered line
+	int bufferedLines;
+	boolean bottomUp;
+
+	ImageWriter(WritableByteChannel channel) {
+		this.channel = channel;
+	}
+
+	// the next image goes to channel, the buffer is kept
+	public void setChannel(WritableByteChannel channel) {
+		this.channel = channel;
+	}
+
+	// bytes per line in the file, at least width * channels
+	abstract int lineSize(int width, int channels);
+
+	abstract boolean prefersBottomUp();
+
+	// file header for the image, lines are stored last first when bottomUp is set
+	abstract ByteBuffer header(int width, int height, int channels, boolean bottomUp);
+
+	// writes a whole decoded image
+	public void write(byte[] pixels, int width, int height, int channels) {
+		start(width, height, channels);
+		rows(pixels, 0, height);
+		end();
+	}
+
+	public void start(int width, int height, int channels) {
+		this.width = width;
+		this.height = height;
+		this.channels = channels;
+		this.lineSize = lineSize(width, channels);
+		this.linesPerBuffer = Math.max(1, BUFFER_SIZE / lineSize);
+		this.bottomUp = prefersBottomUp() && channel instanceof SeekableByteChannel;
+		if (buffer == null || buffer.capacity() < linesPerBuffer * lineSize) {
+			this.buffer = ByteBuffer.allocateDirect(linesPerBuffer * lineSize);
+		}
+		this.buffer.clear();
+		this.bufferedLines = 0;
+		try {
+			ByteBuffer header = header(width, height, channels, bottomUp);
+			dataPosition = (bottomUp ? ((SeekableByteChannel) channel).position() : 0) + header.remaining();
+			writeFully(header);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	public void rows(byte[] band, int firstLine, int lineCount) {
+		for (int l = 0; l < lineCount; l++) {
+			if (bufferedLines == linesPerBuffer) {
+				flush();
+			}
+			if (bufferedLines == 0) {
+				bufferFirstLine = firstLine + l;
+			}
+			int slot = bottomUp ? linesPerBuffer - 1 - bufferedLines : bufferedLines;
+			buffer.position(slot * lineSize);
+			buffer.put(band, l * width * channels, width * channels);
+			for (int i = width * channels; i < lineSize; i++) {
+				buffer.put((byte) 0);
+			}
+			bufferedLines++;
+		}
+	}
+
+	public void end() {
+		if (bufferedLines > 0) {
+			flush();
+		}
+	}
+
+	private void flush() {
+		try {
+			if (bottomUp) {
+				buffer.limit(linesPerBuffer * lineSize).position((linesPerBuffer - bufferedLines) * lineSize);
+				((SeekableByteChannel) channel)
+						.position(dataPosition + (long) (height - bufferFirstLine - bufferedLines) * lineSize);
+			} else {
+				buffer.limit(bufferedLines * lineSize).position(0);
+			}
+			writeFully(buffer);
+			buffer.clear();
+			bufferedLines = 0;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void writeFully(ByteBuffer data) throws IOException {
+		while (data.hasRemaining()) {
+			channel.write(data);
+		}
+	}
+}
+
+// Windows bitmap, 24 bits per pixel in B, G, R order, or 8 bits indexing a gray palette for gray images, with
+// lines padded to 4 bytes. Lines are stored bottom-up, or top-down with a negative height when the channel
+// cannot seek
+class BMPWriter extends ImageWriter {
+	static final int HEADER_SIZE = 14 + 40;
+	static final int PALETTE_SIZE = 256 * 4;
+
+	BMPWriter(WritableByteChannel channel) {
+		super(channel);
+	}
+
+	int lineSize(int width, int channels) {
+		return (width * channels + 3) & ~3;
+	}
+
+	boolean prefersBottomUp() {
+		return true;
+	}
+
+	ByteBuffer header(int width, int height, int channels, boolean bottomUp) {
+		int imageSize = lineSize(width, channels) * height;
+		int paletteSize = channels == 1 ? PALETTE_SIZE : 0;
+		int dataOffset = HEADER_SIZE + paletteSize;
+		ByteBuffer header = ByteBuffer.allocate(dataOffset).order(ByteOrder.LITTLE_ENDIAN);
+		// BITMAPFILEHEADER
+		header.put((byte) 'B').put((byte) 'M').putInt(dataOffset + imageSize).putInt(0).putInt(dataOffset);
+		// BITMAPINFOHEADER
+		header.putInt(40).putInt(width).putInt(bottomUp ? height : -height).putShort((short) 1)
+				.putShort((short) (channels * 8));
+		header.putInt(0).putInt(imageSize).putInt(0).putInt(0).putInt(paletteSize / 4).putInt(0);
+		// palette entries in B, G, R, 0 order, entry i is gray level i
+		for (int i = 0; i < paletteSize / 4; i++) {
+			header.put((byte) i).put((byte) i).put((byte) i).put((byte) 0);
+		}
+		header.flip();
+		return header;
+	}
+}
+
+// binary PPM (P6), or PAM (P7) with the same samples, pixels in R, G, B order. Gray images are written as
+// PGM (P5), or PAM with one sample per pixel
+class PPMWriter extends ImageWriter {
+	boolean pam;
+
+	PPMWriter(WritableByteChannel channel, boolean pam) {
+		super(channel);
+		this.pam = pam;
+	}
+
+	int lineSize(int width, int channels) {
+		return width * channels;
+	}
+
+	boolean prefersBottomUp() {
+		return false;
+	}
+
+	ByteBuffer header(int width, int height, int channels, boolean bottomUp) {
+		String header = pam
+				? "P7\nWIDTH " + width + "\nHEIGHT " + height + "\nDEPTH " + channels + "\nMAXVAL 255\nTUPLTYPE "
+						+ (channels == 1 ? "GRAYSCALE" : "RGB") + "\nENDHDR\n"
+				: (channels == 1 ? "P5\n" : "P6\n") + width + " " + height + "\n255\n";
+		return ByteBuffer.wrap(header.getBytes(StandardCharsets.US_ASCII));
+	}
+}
+
+// called after each scan decoded by JPEGDecoder.decode, scan counts from 1
+interface ScanListener {
+	void scanDecoded(JPEGDecoder decoder, JPEGHeader header, int scan);
+}
+
+class DecoderOptions {
+	int parallelism; // threads used by the decoding stages, 1 keeps everything on the caller
+	int minParallelPixels; // smaller images are processed sequentially
+	boolean fused; // decode single scan images MCU row by MCU row instead of stage by stage
+	IDCTEngine IDCTEngine;
+	boolean vectorized; // use the Vector API color conversion when VectorSupport is available
+	boolean rgb; // pixels in R, G, B order instead of B, G, R
+	boolean expandGray; // gray images give three equal samples per pixel like color ones instead of one
+	boolean fancyUpsampling; // interpolate 2:1 subsampled components instead of repeating their samples
+	int scaleDenominator; // 1, 2, 4 or 8, output is 1/scaleDenominator of the image size
+	int cropX; // crop rectangle in image pixels, no crop when cropWidth is 0
+	int cropY;
+	int cropWidth;
+	int cropHeight;
+	ForkJoinPool pool;
+
+	DecoderOptions() {
+		this.parallelism = Runtime.getRuntime().availableProcessors();
+		this.minParallelPixels = 256 * 256;
+		this.fused = true;
+		this.IDCTEngine = new IslowIDCTEngine();
+		this.scaleDenominator = 1;
+	}
+
+	// same options, sharing the pool
+	public DecoderOptions copy() {
+		DecoderOptions copy = new DecoderOptions();
+		copy.parallelism = parallelism;
+		copy.minParallelPixels = minParallelPixels;
+		copy.fused = fused;
+		copy.IDCTEngine = IDCTEngine;
+		copy.vectorized = vectorized;
+		copy.rgb = rgb;
+		copy.expandGray = expandGray;
+		copy.fancyUpsampling = fancyUpsampling;
+		copy.scaleDenominator = scaleDenominator;
+		copy.cropX = cropX;
+		copy.cropY = cropY;
+		copy.cropWidth = cropWidth;
+		copy.cropHeight = cropHeight;
+		copy.pool = getPool();
+		return copy;
+	}
+
+	public int getScaleDenominator() {
+		return scaleDenominator;
+	}
+
+	public void setScaleDenominator(int scaleDenominator) {
+		this.scaleDenominator = scaleDenominator;
+	}
+
+	public boolean hasCrop() {
+		return cropWidth > 0 && cropHeight > 0;
+	}
+
+	public int getCropX() {
+		return cropX;
+	}
+
+	public int getCropY() {
+		return cropY;
+	}
+
+	public int getCropWidth() {
+		return cropWidth;
+	}
+
+	public int getCropHeight() {
+		return cropHeight;
+	}
+
+	// only the part of the image inside the rectangle is decoded and output
+	public void setCrop(int cropX, int cropY, int cropWidth, int cropHeight) {
+		this.cropX = Math.max(0, cropX);
+		this.cropY = Math.max(0, cropY);
+		this.cropWidth = cropWidth;
+		this.cropHeight = cropHeight;
+	}
+
+	public IDCTEngine getIDCTEngine() {
+		return IDCTEngine;
+	}
+
+	public void setIDCTEngine(IDCTEngine IDCTEngine) {
+		this.IDCTEngine = IDCTEngine;
+	}
+
+	public boolean isVectorized() {
+		return vectorized;
+	}
 
-import java.awt.image.BufferedImage;
-import java.awt.image.DataBufferByte;
+	// Vector API color conversion and IDCT, stays on the scalar code when they are not available. Only the
+	// islow engine has a vector variant, the decoder keeps the others scalar
+	public void setVectorized(boolean vectorized) {
+		this.vectorized = vectorized && VectorSupport.isAvailable();
+	}
 
-// 8x8 basic block
-class Block {
-	int[] Y;
-	int[] Cb;
-	int[] Cr;
-	int[][][] rgb;
+	public boolean isRGB() {
+		return rgb;
+	}
 
-	Block() {
-		this.Y = new int[64];
-		this.Cb = new int[64];
-		this.Cr = new int[64];
-		this.rgb = new int[8][8][3];
+	public void setRGB(boolean rgb) {
+		this.rgb = rgb;
+	}
 
-		for (int i = 0; i < 8; i++) {
-			for (int j = 0; j < 8; j++) {
-				for (int k = 0; k < 3; k++) {
-					this.rgb[i][j][k] = 0;
-				}
-			}
-		}
+	public boolean isExpandGray() {
+		return expandGray;
+	}
 
-		for (int i = 0; i < 64; i++) {
-			this.Y[i] = 0;
-			this.Cb[i] = 0;
-			this.Cr[i] = 0;
+	public void setExpandGray(boolean expandGray) {
+		this.expandGray = expandGray;
+	}
 
-			// RGB do not need to be initialized
-			// since they will be filled in color space conversion
-		}
+	public boolean isFancyUpsampling() {
+		return fancyUpsampling;
 	}
 
-	public int[][][] getRgb() {
-		return rgb;
+	public void setFancyUpsampling(boolean fancyUpsampling) {
+		this.fancyUpsampling = fancyUpsampling;
 	}
 
-	public int[] getComponentDataByID(int ID) {
-		switch (ID) {
-			case 1:
-				return this.Y;
-			case 2:
-				return this.Cb;
-			case 3:
-				return this.Cr;
+	public boolean isFused() {
+		return fused;
+	}
+
+	public void setFused(boolean fused) {
+		this.fused = fused;
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	public void setParallelism(int parallelism) {
+		this.parallelism = Math.max(1, parallelism);
+		this.pool = null;
+	}
+
+	public int getMinParallelPixels() {
+		return minParallelPixels;
+	}
+
+	public void setMinParallelPixels(int minParallelPixels) {
+		this.minParallelPixels = minParallelPixels;
+	}
+
+	// the common pool when it has the requested size, null when decoding is sequential
+	public synchronized ForkJoinPool getPool() {
+		if (parallelism <= 1) {
+			return null;
+		}
+		if (pool == null) {
+			pool = parallelism == ForkJoinPool.getCommonPoolParallelism() ? ForkJoinPool.commonPool()
+					: new ForkJoinPool(parallelism);
+		}
+		return pool;
+	}
+}
+
+// inverse DCT of one quantized block, data[offset..offset + 63] in natural order whose last
+// non-zero coefficient in zigzag order is at eob, samples are written to output rows of stride bytes.
+// Coefficients are dequantized with the table's multipliers while the first pass reads them
+interface IDCTEngine {
+	void IDCT8x8(int[] data, int offset, int eob, QuantizationTable table, int[] workspace, byte[] output,
+			int outputOffset, int stride);
+
+	// islow, ifast or float
+	static IDCTEngine byName(String name) {
+		switch (name) {
+			case "islow":
+				return new IslowIDCTEngine();
+			case "ifast":
+				return new IfastIDCTEngine();
+			case "float":
+				return new FloatIDCTEngine();
 			default:
-				System.out.println("Invalid component ID: " + ID);
 				return null;
 		}
 	}
-}
 
-class JPEGDecoder {
-	List<Block> blocks;
-	int[] lastDCs;
+	// level shifted sample clamped to [0 - 255]
+	static int clamp(int sample) {
+		return sample < 0 ? 0 : (sample > 255 ? 255 : sample);
+	}
 
-	JPEGDecoder() {
-		this.blocks = new ArrayList<Block>();
-		this.lastDCs = new int[3];
-		for (int i = 0; i < 3; i++) {
-			lastDCs[i] = 0;
+	static void fillBlock(byte[] output, int outputOffset, int stride, byte sample) {
+		for (int i = 0; i < 8; i++) {
+			int row = outputOffset + i * stride;
+			for (int j = 0; j < 8; j++) {
+				output[row + j] = sample;
+			}
 		}
 	}
 
-	public int[] getLastDCs() {
-		return lastDCs;
+	// highest row / column holding a coefficient of the first eob + 1 ones in zigzag order
+	static int[] zigzagLimits(boolean rows) {
+		int[] index2ZigZag = new JPEGHeader().getIndex2ZigZagMap();
+		int[] limits = new int[64];
+		int limit = 0;
+		for (int i = 0; i < 64; i++) {
+			limit = Math.max(limit, rows ? index2ZigZag[i] >> 3 : index2ZigZag[i] & 7);
+			limits[i] = limit;
+		}
+		return limits;
 	}
+}
 
-	public List<Block> decode(JPEGHeader header) {
-		BitInputStream bitInputStream = new BitInputStream(header.data);
-		int horizontalBlockCount = header.getHorizontalBlockCount();
-		int verticalBlockCount = header.getVerticalBlockCount();
+// accurate integer IDCT, port of libjpeg's jidctint.c
+class IslowIDCTEngine implements IDCTEngine {
+	static final int CONST_BITS = 13;
+	static final int PASS1_BITS = 2;
+
+	static final int FIX_0_298631336 = 2446;
+	static final int FIX_0_390180644 = 3196;
+	static final int FIX_0_541196100 = 4433;
+	static final int FIX_0_765366865 = 6270;
+	static final int FIX_0_899976223 = 7373;
+	static final int FIX_1_175875602 = 9633;
+	static final int FIX_1_501321110 = 12299;
+	static final int FIX_1_847759065 = 15137;
+	static final int FIX_1_961570560 = 16069;
+	static final int FIX_2_053119869 = 16819;
+	static final int FIX_2_562915447 = 20995;
+	static final int FIX_3_072711026 = 25172;
+
+	static final int[] LAST_ROW = IDCTEngine.zigzagLimits(true);
+	static final int[] LAST_COLUMN = IDCTEngine.zigzagLimits(false);
+
+	static int descale(int x, int n) {
+		return (x + (1 << (n - 1))) >> n;
+	}
 
-		if (header.getHorizontalSamplingFactor() == 2 && header.getWidth() % 2 != 0) {
-			horizontalBlockCount += 1;
-		}
-		if (header.getVerticalSamplingFactor() == 2 && header.getHeight() % 2 != 0) {
-			verticalBlockCount += 1;
-		}
-		for (int i = 0; i < horizontalBlockCount * verticalBlockCount; i++) {
-			blocks.add(new Block());
+	public void IDCT8x8(final int[] data, final int offset, final int eob, final QuantizationTable table,
+			final int[] workspace, final byte[] output, final int outputOffset, final int stride) {
+		final int[] quantization = table.getData();
+		if (eob == 0) { // DC only
+			int dcval = descale((data[offset] * quantization[0]) << PASS1_BITS, PASS1_BITS + 3);
+			IDCTEngine.fillBlock(output, outputOffset, stride, (byte) IDCTEngine.clamp(dcval + 128));
+			return;
 		}
 
-		for (int i = 0; i < header.getVerticalBlockCount(); i += header.getVerticalSamplingFactor()) {
-			for (int j = 0; j < header.getHorizontalBlockCount(); j += header.getHorizontalSamplingFactor()) {
-				for (int k = 1; k < header.getComponents().size(); k++) {
-					int lastDC = getLastDCs()[k - 1];
-					Component component = header.getComponents().get(k);
-					int componentID = component.getID();
-					int vMax = component.getVerticalSamplingFactor();
-					int hMax = component.getHorizontalSamplingFactor();
-
-					for (int v = 0; v < vMax; v++) {
-						for (int h = 0; h < hMax; h++) {
-							int verticalOffset = i + v;
-							int horizontalOffset = j + h;
-							Block block = blocks
-									.get(verticalOffset * horizontalBlockCount + horizontalOffset);
-							lastDC = getLastDCs()[k - 1];
-							int idx = 0;
-
-							// Decode DC
-							int dcLength = huffmanDecode(
-									header.getDCHuffmanTable().get(component.getDCHuffmanTableID()),
-									bitInputStream);
-							if (dcLength > 11) {
-								System.out.println("invalid DC coefficient");
-								System.exit(1);
-							}
-							int dcCoeff = bitInputStream.readNBits(dcLength);
-							if (dcLength > 0 && dcCoeff < (1 << (dcLength - 1))) {
-								dcCoeff = dcCoeff - (1 << dcLength) + 1;
-							}
-							int finalDCCoeff = dcCoeff + lastDC;
-							block.getComponentDataByID(componentID)[header.getIndex2ZigZagMap()
-									.get(idx)] = finalDCCoeff;
-							getLastDCs()[k - 1] = finalDCCoeff;
-							idx++;
-
-							// decode AC
-							while (idx < 64) {
-								int symbol = huffmanDecode(
-										header.getACHuffmanTable().get(component.getACHuffmanTableID()),
-										bitInputStream);
-								if (symbol == -1) {
-									System.out.println("invalid AC coefficent");
-									System.exit(1);
-								}
-
-								if (symbol == 0x00) { // 63 AC coefficient will be zero
-									break;
-								}
-
-								int precedingZeroCount = symbol >> 4;
-								if (precedingZeroCount == 0xF0) { // it should be 16 zero even 0xF0 is 15
-									precedingZeroCount = 16;
-								}
-
-								if (idx + precedingZeroCount >= 64) {
-									System.out.println("preceding zero count exceeding 8x8 block");
-									System.exit(1);
-								}
-
-								for (int w = 0; w < precedingZeroCount; w++, idx++) {
-									block.getComponentDataByID(componentID)[header.getIndex2ZigZagMap().get(idx)] = 0;
-								}
-
-								int acLength = symbol & 0x0F;
-								if (acLength > 10) {
-									System.out.println("invalid AC coefficient");
-									System.exit(1);
-								}
-								int acCoeff = 0;
-								if (acLength != 0) {
-									acCoeff = bitInputStream.readNBits(acLength);
-									if (acCoeff < (1 << (acLength - 1))) {
-										acCoeff = acCoeff - (1 << acLength) + 1;
-									}
-								}
-								block.getComponentDataByID(componentID)[header.getIndex2ZigZagMap().get(idx)] = acCoeff;
-								idx++;
-							}
-						}
-					}
+		// Pass 1: columns, those right of LAST_COLUMN[eob] are zero
+		int columns = LAST_COLUMN[eob] + 1;
+		boolean lowRows = LAST_ROW[eob] < 4;
+		for (int i = 0; i < columns; i++) {
+			int in = offset + i;
+			if (data[in + 8] == 0 && data[in + 16] == 0 && data[in + 24] == 0 && data[in + 32] == 0
+					&& data[in + 40] == 0 && data[in + 48] == 0 && data[in + 56] == 0) {
+				// AC terms of the column are zero
+				int dcval = (data[in] * quantization[i]) << PASS1_BITS;
+				for (int j = 0; j < 8; j++) {
+					workspace[j * 8 + i] = dcval;
 				}
+				continue;
+			}
+
+			int tmp0, tmp1, tmp2, tmp3, tmp10, tmp11, tmp12, tmp13, z1, z2, z3, z4, z5;
+			if (lowRows) {
+				// rows 4 - 7 are zero
+				z2 = data[in + 16] * quantization[i + 16];
+				z1 = z2 * FIX_0_541196100;
+				tmp2 = z1;
+				tmp3 = z1 + z2 * FIX_0_765366865;
+				tmp0 = (data[in] * quantization[i]) << CONST_BITS;
+
+				tmp10 = tmp0 + tmp3;
+				tmp13 = tmp0 - tmp3;
+				tmp11 = tmp0 + tmp2;
+				tmp12 = tmp0 - tmp2;
+
+				int c1 = data[in + 8] * quantization[i + 8];
+				int c3 = data[in + 24] * quantization[i + 24];
+				z5 = (c3 + c1) * FIX_1_175875602;
+				tmp2 = c3 * FIX_3_072711026;
+				tmp3 = c1 * FIX_1_501321110;
+				z1 = c1 * -FIX_0_899976223;
+				z2 = c3 * -FIX_2_562915447;
+				z3 = c3 * -FIX_1_961570560 + z5;
+				z4 = c1 * -FIX_0_390180644 + z5;
+				tmp0 = z1 + z3;
+				tmp1 = z2 + z4;
+				tmp2 += z2 + z3;
+				tmp3 += z1 + z4;
+			} else {
+				// Even part
+				z2 = data[in + 16] * quantization[i + 16];
+				z3 = data[in + 48] * quantization[i + 48];
+				z1 = (z2 + z3) * FIX_0_541196100;
+				tmp2 = z1 + z3 * -FIX_1_847759065;
+				tmp3 = z1 + z2 * FIX_0_765366865;
+
+				z2 = data[in] * quantization[i];
+				z3 = data[in + 32] * quantization[i + 32];
+				tmp0 = (z2 + z3) << CONST_BITS;
+				tmp1 = (z2 - z3) << CONST_BITS;
+
+				tmp10 = tmp0 + tmp3;
+				tmp13 = tmp0 - tmp3;
+				tmp11 = tmp1 + tmp2;
+				tmp12 = tmp1 - tmp2;
+
+				// Odd part
+				tmp0 = data[in + 56] * quantization[i + 56];
+				tmp1 = data[in + 40] * quantization[i + 40];
+				tmp2 = data[in + 24] * quantization[i + 24];
+				tmp3 = data[in + 8] * quantization[i + 8];
+
+				z1 = tmp0 + tmp3;
+				z2 = tmp1 + tmp2;
+				z3 = tmp0 + tmp2;
+				z4 = tmp1 + tmp3;
+				z5 = (z3 + z4) * FIX_1_175875602;
+
+				tmp0 = tmp0 * FIX_0_298631336;
+				tmp1 = tmp1 * FIX_2_053119869;
+				tmp2 = tmp2 * FIX_3_072711026;
+				tmp3 = tmp3 * FIX_1_501321110;
+				z1 = z1 * -FIX_0_899976223;
+				z2 = z2 * -FIX_2_562915447;
+				z3 = z3 * -FIX_1_961570560 + z5;
+				z4 = z4 * -FIX_0_390180644 + z5;
+
+				tmp0 += z1 + z3;
+				tmp1 += z2 + z4;
+				tmp2 += z2 + z3;
+				tmp3 += z1 + z4;
+			}
+
+			workspace[i] = descale(tmp10 + tmp3, CONST_BITS - PASS1_BITS);
+			workspace[56 + i] = descale(tmp10 - tmp3, CONST_BITS - PASS1_BITS);
+			workspace[8 + i] = descale(tmp11 + tmp2, CONST_BITS - PASS1_BITS);
+			workspace[48 + i] = descale(tmp11 - tmp2, CONST_BITS - PASS1_BITS);
+			workspace[16 + i] = descale(tmp12 + tmp1, CONST_BITS - PASS1_BITS);
+			workspace[40 + i] = descale(tmp12 - tmp1, CONST_BITS - PASS1_BITS);
+			workspace[24 + i] = descale(tmp13 + tmp0, CONST_BITS - PASS1_BITS);
+			workspace[32 + i] = descale(tmp13 - tmp0, CONST_BITS - PASS1_BITS);
+		}
+		for (int i = columns; i < 8; i++) {
+			for (int j = 0; j < 8; j++) {
+				workspace[j * 8 + i] = 0;
 			}
 		}
-		return blocks;
+
+		rows(workspace, columns, output, outputOffset, stride);
 	}
 
-	private int huffmanDecode(HuffmanTable huffmanTable, BitInputStream bitInputStream) {
-		int bit;
-		int index = 0;
-		int symbol = huffmanTable.getSymbol(index);
-
-		while (symbol == Integer.MIN_VALUE) {
-			bit = bitInputStream.read();
-			if (bit == 0) {
-				index = (index << 1) + 1;
-			} else {
-				index = (index << 1) + 2;
+	// Pass 2: rows of the workspace, only the first columns values can be non-zero
+	static void rows(final int[] workspace, final int columns, final byte[] output, final int outputOffset,
+			final int stride) {
+		boolean lowColumns = columns <= 4;
+		for (int i = 0; i < 8; i++) {
+			int ws = i * 8;
+			int out = outputOffset + i * stride;
+			if (workspace[ws + 1] == 0 && workspace[ws + 2] == 0 && workspace[ws + 3] == 0 && workspace[ws + 4] == 0
+					&& workspace[ws + 5] == 0 && workspace[ws + 6] == 0 && workspace[ws + 7] == 0) {
+				// AC terms of the row are zero
+				byte sample = (byte) IDCTEngine.clamp(descale(workspace[ws], PASS1_BITS + 3) + 128);
+				for (int j = 0; j < 8; j++) {
+					output[out + j] = sample;
+				}
+				continue;
 			}
 
-			if (index >= huffmanTable.getTree().length)
-				return -1;
+			int tmp0, tmp1, tmp2, tmp3, tmp10, tmp11, tmp12, tmp13, z1, z2, z3, z4, z5;
+			if (lowColumns) {
+				// columns 4 - 7 are zero
+				z2 = workspace[ws + 2];
+				z1 = z2 * FIX_0_541196100;
+				tmp2 = z1;
+				tmp3 = z1 + z2 * FIX_0_765366865;
+				tmp0 = workspace[ws] << CONST_BITS;
+
+				tmp10 = tmp0 + tmp3;
+				tmp13 = tmp0 - tmp3;
+				tmp11 = tmp0 + tmp2;
+				tmp12 = tmp0 - tmp2;
+
+				int c1 = workspace[ws + 1];
+				int c3 = workspace[ws + 3];
+				z5 = (c3 + c1) * FIX_1_175875602;
+				tmp2 = c3 * FIX_3_072711026;
+				tmp3 = c1 * FIX_1_501321110;
+				z1 = c1 * -FIX_0_899976223;
+				z2 = c3 * -FIX_2_562915447;
+				z3 = c3 * -FIX_1_961570560 + z5;
+				z4 = c1 * -FIX_0_390180644 + z5;
+				tmp0 = z1 + z3;
+				tmp1 = z2 + z4;
+				tmp2 += z2 + z3;
+				tmp3 += z1 + z4;
+			} else {
+				// Even part
+				z2 = workspace[ws + 2];
+				z3 = workspace[ws + 6];
+				z1 = (z2 + z3) * FIX_0_541196100;
+				tmp2 = z1 + z3 * -FIX_1_847759065;
+				tmp3 = z1 + z2 * FIX_0_765366865;
+
+				tmp0 = (workspace[ws] + workspace[ws + 4]) << CONST_BITS;
+				tmp1 = (workspace[ws] - workspace[ws + 4]) << CONST_BITS;
+
+				tmp10 = tmp0 + tmp3;
+				tmp13 = tmp0 - tmp3;
+				tmp11 = tmp1 + tmp2;
+				tmp12 = tmp1 - tmp2;
+
+				// Odd part
+				tmp0 = workspace[ws + 7];
+				tmp1 = workspace[ws + 5];
+				tmp2 = workspace[ws + 3];
+				tmp3 = workspace[ws + 1];
+
+				z1 = tmp0 + tmp3;
+				z2 = tmp1 + tmp2;
+				z3 = tmp0 + tmp2;
+				z4 = tmp1 + tmp3;
+				z5 = (z3 + z4) * FIX_1_175875602;
+
+				tmp0 = tmp0 * FIX_0_298631336;
+				tmp1 = tmp1 * FIX_2_053119869;
+				tmp2 = tmp2 * FIX_3_072711026;
+				tmp3 = tmp3 * FIX_1_501321110;
+				z1 = z1 * -FIX_0_899976223;
+				z2 = z2 * -FIX_2_562915447;
+				z3 = z3 * -FIX_1_961570560 + z5;
+				z4 = z4 * -FIX_0_390180644 + z5;
+
+				tmp0 += z1 + z3;
+				tmp1 += z2 + z4;
+				tmp2 += z2 + z3;
+				tmp3 += z1 + z4;
+			}
 
-			symbol = huffmanTable.getSymbol(index);
+			int shift = CONST_BITS + PASS1_BITS + 3;
+			output[out] = (byte) IDCTEngine.clamp(descale(tmp10 + tmp3, shift) + 128);
+			output[out + 7] = (byte) IDCTEngine.clamp(descale(tmp10 - tmp3, shift) + 128);
+			output[out + 1] = (byte) IDCTEngine.clamp(descale(tmp11 + tmp2, shift) + 128);
+			output[out + 6] = (byte) IDCTEngine.clamp(descale(tmp11 - tmp2, shift) + 128);
+			output[out + 2] = (byte) IDCTEngine.clamp(descale(tmp12 + tmp1, shift) + 128);
+			output[out + 5] = (byte) IDCTEngine.clamp(descale(tmp12 - tmp1, shift) + 128);
+			output[out + 3] = (byte) IDCTEngine.clamp(descale(tmp13 + tmp0, shift) + 128);
+			output[out + 4] = (byte) IDCTEngine.clamp(descale(tmp13 - tmp0, shift) + 128);
 		}
+	}
+}
 
-		return symbol;
+// fast, less accurate integer AAN IDCT, port of libjpeg's jidctfst.c
+class IfastIDCTEngine implements IDCTEngine {
+	static final int CONST_BITS = 8;
+	static final int PASS1_BITS = 2;
+
+	static final int FIX_1_082392200 = 277;
+	static final int FIX_1_414213562 = 362;
+	static final int FIX_1_847759065 = 473;
+	static final int FIX_2_613125930 = 669;
+
+	// AAN scale factors scaled up by 14 bits
+	static final int[] AAN_SCALES = {
+			16384, 22725, 21407, 19266, 16384, 12873, 8867, 4520,
+			22725, 31521, 29692, 26722, 22725, 17855, 12299, 6270,
+			21407, 29692, 27969, 25172, 21407, 16819, 11585, 5906,
+			19266, 26722, 25172, 22654, 19266, 15137, 10426, 5315,
+			16384, 22725, 21407, 19266, 16384, 12873, 8867, 4520,
+			12873, 17855, 16819, 15137, 12873, 10114, 6967, 3552,
+			8867, 12299, 11585, 10426, 8867, 6967, 4799, 2446,
+			4520, 6270, 5906, 5315, 4520, 3552, 2446, 1247 };
+
+	static final int[] LAST_ROW = IDCTEngine.zigzagLimits(true);
+	static final int[] LAST_COLUMN = IDCTEngine.zigzagLimits(false);
+
+	static int multiply(int x, int c) {
+		return (x * c) >> CONST_BITS;
 	}
 
-	public List<Block> getBlocks() {
-		return blocks;
+	// quantization value times its AAN scale, keeping PASS1_BITS of extra precision
+	static int[] multipliers(int[] quantization) {
+		int[] multipliers = new int[64];
+		for (int i = 0; i < 64; i++) {
+			multipliers[i] = (quantization[i] * AAN_SCALES[i] + (1 << 11)) >> 12;
+		}
+		return multipliers;
 	}
 
-	public void dequantize(JPEGHeader header) {
-		int horizontalBlockCount = header.getHorizontalBlockCount();
+	public void IDCT8x8(final int[] data, final int offset, final int eob, final QuantizationTable table,
+			final int[] workspace, final byte[] output, final int outputOffset, final int stride) {
+		final int[] multipliers = table.getIfastMultipliers();
+		if (eob == 0) { // DC only
+			int dcval = data[offset] * multipliers[0] >> (PASS1_BITS + 3);
+			IDCTEngine.fillBlock(output, outputOffset, stride, (byte) IDCTEngine.clamp(dcval + 128));
+			return;
+		}
+
+		// Pass 1: columns, those right of LAST_COLUMN[eob] are zero
+		int columns = LAST_COLUMN[eob] + 1;
+		boolean lowRows = LAST_ROW[eob] < 4;
+		for (int i = 0; i < columns; i++) {
+			int in = offset + i;
+			if (data[in + 8] == 0 && data[in + 16] == 0 && data[in + 24] == 0 && data[in + 32] == 0
+					&& data[in + 40] == 0 && data[in + 48] == 0 && data[in + 56] == 0) {
+				// AC terms of the column are zero
+				int dcval = data[offset + i] * multipliers[i];
+				for (int j = 0; j < 8; j++) {
+					workspace[j * 8 + i] = dcval;
+				}
+				continue;
+			}
+
+			int tmp0, tmp1, tmp2, tmp3, tmp4, tmp5, tmp6, tmp7, tmp10, tmp11, tmp12, tmp13, z5, z10, z11, z12, z13;
+			if (lowRows) {
+				// rows 4 - 7 are zero
+				tmp0 = data[offset + i] * multipliers[i];
+				tmp1 = data[in + 16] * multipliers[i + 16];
+
+				tmp13 = tmp1;
+				tmp12 = multiply(tmp1, FIX_1_414213562) - tmp13;
+				tmp3 = tmp0 - tmp13;
+				tmp2 = tmp0 - tmp12;
+				tmp1 = tmp0 + tmp12;
+				tmp0 = tmp0 + tmp13;
+
+				tmp4 = data[in + 8] * multipliers[i + 8];
+				tmp5 = data[in + 24] * multipliers[i + 24];
+
+				z13 = tmp5;
+				z10 = -tmp5;
+				z11 = tmp4;
+				z12 = tmp4;
+			} else {
+				// Even part
+				tmp0 = data[offset + i] * multipliers[i];
+				tmp1 = data[in + 16] * multipliers[i + 16];
+				tmp2 = data[in + 32] * multipliers[i + 32];
+				tmp3 = data[in + 48] * multipliers[i + 48];
+
+				tmp10 = tmp0 + tmp2;
+				tmp11 = tmp0 - tmp2;
+
+				tmp13 = tmp1 + tmp3;
+				tmp12 = multiply(tmp1 - tmp3, FIX_1_414213562) - tmp13;
+
+				tmp0 = tmp10 + tmp13;
+				tmp3 = tmp10 - tmp13;
+				tmp1 = tmp11 + tmp12;
+				tmp2 = tmp11 - tmp12;
+
+				// Odd part
+				tmp4 = data[in + 8] * multipliers[i + 8];
+				tmp5 = data[in + 24] * multipliers[i + 24];
+				tmp6 = data[in + 40] * multipliers[i + 40];
+				tmp7 = data[in + 56] * multipliers[i + 56];
+
+				z13 = tmp6 + tmp5;
+				z10 = tmp6 - tmp5;
+				z11 = tmp4 + tmp7;
+				z12 = tmp4 - tmp7;
+			}
 
-		if (header.getHorizontalSamplingFactor() == 2 && header.getWidth() % 2 != 0) {
-			horizontalBlockCount = header.getHorizontalBlockCount() + 1;
+			tmp7 = z11 + z13;
+			tmp11 = multiply(z11 - z13, FIX_1_414213562);
+
+			z5 = multiply(z10 + z12, FIX_1_847759065);
+			tmp10 = multiply(z12, FIX_1_082392200) - z5;
+			tmp12 = multiply(z10, -FIX_2_613125930) + z5;
+
+			tmp6 = tmp12 - tmp7;
+			tmp5 = tmp11 - tmp6;
+			tmp4 = tmp10 + tmp5;
+
+			workspace[i] = tmp0 + tmp7;
+			workspace[56 + i] = tmp0 - tmp7;
+			workspace[8 + i] = tmp1 + tmp6;
+			workspace[48 + i] = tmp1 - tmp6;
+			workspace[16 + i] = tmp2 + tmp5;
+			workspace[40 + i] = tmp2 - tmp5;
+			workspace[32 + i] = tmp3 + tmp4;
+			workspace[24 + i] = tmp3 - tmp4;
+		}
+		for (int i = columns; i < 8; i++) {
+			for (int j = 0; j < 8; j++) {
+				workspace[j * 8 + i] = 0;
+			}
 		}
 
-		for (int i = 0; i < header.getVerticalBlockCount(); i += header.getVerticalSamplingFactor()) {
-			for (int j = 0; j < header.getHorizontalBlockCount(); j += header.getHorizontalSamplingFactor()) {
-				for (int k = 1; k < header.getComponents().size(); k++) {
-					Component component = header.getComponents().get(k);
-					int vMax = component.getVerticalSamplingFactor();
-					int hMax = component.getHorizontalSamplingFactor();
-					int quantizationTableID = component.getQuantizedTableID();
-
-					for (int v = 0; v < vMax; v++) {
-						for (int h = 0; h < hMax; h++) {
-							int verticalOffset = i + v;
-							int horizontalOffset = j + h;
-							Block block = blocks
-									.get(verticalOffset * horizontalBlockCount + horizontalOffset);
-							int[] componentData = block.getComponentDataByID(k);
-							QuantizationTable quantizationTable = header.getQuantizationTableByID(quantizationTableID);
-							int[] quantizationTableData = quantizationTable.getData();
-
-							for (int l = 0; l < 64; l++) {
-								componentData[l] *= quantizationTableData[l];
-							}
-						}
-					}
+		// Pass 2: rows, only the first columns values can be non-zero
+		boolean lowColumns = columns <= 4;
+		for (int i = 0; i < 8; i++) {
+			int ws = i * 8;
+			int out = outputOffset + i * stride;
+			if (workspace[ws + 1] == 0 && workspace[ws + 2] == 0 && workspace[ws + 3] == 0 && workspace[ws + 4] == 0
+					&& workspace[ws + 5] == 0 && workspace[ws + 6] == 0 && workspace[ws + 7] == 0) {
+				// AC terms of the row are zero
+				byte sample = (byte) IDCTEngine.clamp((workspace[ws] >> (PASS1_BITS + 3)) + 128);
+				for (int j = 0; j < 8; j++) {
+					output[out + j] = sample;
 				}
+				continue;
 			}
+
+			int tmp0, tmp1, tmp2, tmp3, tmp4, tmp5, tmp6, tmp7, tmp10, tmp11, tmp12, tmp13, z5, z10, z11, z12, z13;
+			if (lowColumns) {
+				// columns 4 - 7 are zero
+				tmp13 = workspace[ws + 2];
+				tmp12 = multiply(workspace[ws + 2], FIX_1_414213562) - tmp13;
+
+				tmp0 = workspace[ws] + tmp13;
+				tmp3 = workspace[ws] - tmp13;
+				tmp1 = workspace[ws] + tmp12;
+				tmp2 = workspace[ws] - tmp12;
+
+				z13 = workspace[ws + 3];
+				z10 = -workspace[ws + 3];
+				z11 = workspace[ws + 1];
+				z12 = workspace[ws + 1];
+			} else {
+				// Even part
+				tmp10 = workspace[ws] + workspace[ws + 4];
+				tmp11 = workspace[ws] - workspace[ws + 4];
+
+				tmp13 = workspace[ws + 2] + workspace[ws + 6];
+				tmp12 = multiply(workspace[ws + 2] - workspace[ws + 6], FIX_1_414213562) - tmp13;
+
+				tmp0 = tmp10 + tmp13;
+				tmp3 = tmp10 - tmp13;
+				tmp1 = tmp11 + tmp12;
+				tmp2 = tmp11 - tmp12;
+
+				// Odd part
+				z13 = workspace[ws + 5] + workspace[ws + 3];
+				z10 = workspace[ws + 5] - workspace[ws + 3];
+				z11 = workspace[ws + 1] + workspace[ws + 7];
+				z12 = workspace[ws + 1] - workspace[ws + 7];
+			}
+
+			tmp7 = z11 + z13;
+			tmp11 = multiply(z11 - z13, FIX_1_414213562);
+
+			z5 = multiply(z10 + z12, FIX_1_847759065);
+			tmp10 = multiply(z12, FIX_1_082392200) - z5;
+			tmp12 = multiply(z10, -FIX_2_613125930) + z5;
+
+			tmp6 = tmp12 - tmp7;
+			tmp5 = tmp11 - tmp6;
+			tmp4 = tmp10 + tmp5;
+
+			int shift = PASS1_BITS + 3;
+			output[out] = (byte) IDCTEngine.clamp(((tmp0 + tmp7) >> shift) + 128);
+			output[out + 7] = (byte) IDCTEngine.clamp(((tmp0 - tmp7) >> shift) + 128);
+			output[out + 1] = (byte) IDCTEngine.clamp(((tmp1 + tmp6) >> shift) + 128);
+			output[out + 6] = (byte) IDCTEngine.clamp(((tmp1 - tmp6) >> shift) + 128);
+			output[out + 2] = (byte) IDCTEngine.clamp(((tmp2 + tmp5) >> shift) + 128);
+			output[out + 5] = (byte) IDCTEngine.clamp(((tmp2 - tmp5) >> shift) + 128);
+			output[out + 4] = (byte) IDCTEngine.clamp(((tmp3 + tmp4) >> shift) + 128);
+			output[out + 3] = (byte) IDCTEngine.clamp(((tmp3 - tmp4) >> shift) + 128);
 		}
 	}
+}
 
+// float AAN IDCT
+class FloatIDCTEngine implements IDCTEngine {
 	final float m0 = (float) 1.847759; // (float)(2.0 * Math.cos(1.0/16.0 * 2.0 * Math.PI));
 	final float m1 = (float) 1.4142135; // (float)(2.0 * Math.cos(2.0/16.0 * 2.0 * Math.PI));
 	final float m3 = (float) 1.4142135; // (float)(2.0 * Math.cos(2.0/16.0 * 2.0 * Math.PI));
@@ -242,28 +2133,48 @@ class JPEGDecoder {
 	final float m2 = (float) 1.0823922; // m0-m5;
 	final float m4 = (float) 2.6131258; // m0+m5;
 
-	final float s0 = (float) 0.35355338; // (float)(Math.cos(0.0/16.0 *Math.PI)/Math.sqrt(8));
-	final float s1 = (float) 0.49039263; // (float)(Math.cos(1.0/16.0 *Math.PI)/2.0);
-	final float s2 = (float) 0.46193975; // (float)(Math.cos(2.0/16.0 *Math.PI)/2.0);
-	final float s3 = (float) 0.4157348; // (float)(Math.cos(3.0/16.0 *Math.PI)/2.0);
-	final float s4 = (float) 0.35355338; // (float)(Math.cos(4.0/16.0 *Math.PI)/2.0);
-	final float s5 = (float) 0.27778512; // (float)(Math.cos(5.0/16.0 *Math.PI)/2.0);
-	final float s6 = (float) 0.19134171; // (float)(Math.cos(6.0/16.0 *Math.PI)/2.0);
-	final float s7 = (float) 0.09754516; // (float)(Math.cos(7.0/16.0 *Math.PI)/2.0);
+	static final float s0 = (float) 0.35355338; // (float)(Math.cos(0.0/16.0 *Math.PI)/Math.sqrt(8));
+	static final float s1 = (float) 0.49039263; // (float)(Math.cos(1.0/16.0 *Math.PI)/2.0);
+	static final float s2 = (float) 0.46193975; // (float)(Math.cos(2.0/16.0 *Math.PI)/2.0);
+	static final float s3 = (float) 0.4157348; // (float)(Math.cos(3.0/16.0 *Math.PI)/2.0);
+	static final float s4 = (float) 0.35355338; // (float)(Math.cos(4.0/16.0 *Math.PI)/2.0);
+	static final float s5 = (float) 0.27778512; // (float)(Math.cos(5.0/16.0 *Math.PI)/2.0);
+	static final float s6 = (float) 0.19134171; // (float)(Math.cos(6.0/16.0 *Math.PI)/2.0);
+	static final float s7 = (float) 0.09754516; // (float)(Math.cos(7.0/16.0 *Math.PI)/2.0);
+
+	// the first pass keeps PASS1_SCALE times the result as int, the second pass takes it out again
+	static final float PASS1_SCALE = 8;
+	static final float[] SCALES = { s0, s1, s2, s3, s4, s5, s6, s7 };
+
+	// quantization value times the row and column scale factors
+	static float[] multipliers(int[] quantization) {
+		float[] multipliers = new float[64];
+		for (int i = 0; i < 64; i++) {
+			multipliers[i] = quantization[i] * SCALES[i >> 3] * SCALES[i & 7] * PASS1_SCALE;
+		}
+		return multipliers;
+	}
 
 	// ref:
 	// https://codereview.stackexchange.com/questions/265527/faster-aan-algorithm-for-calculating-discrete-cosine-transform
-	public void IDCT8x8(final int[] data) {
+	public void IDCT8x8(final int[] data, final int offset, final int eob, final QuantizationTable table,
+			final int[] workspace, final byte[] output, final int outputOffset, final int stride) {
+		final float[] multipliers = table.getFloatMultipliers();
+		if (eob == 0) { // DC only, both passes produce flat output
+			int dcval = (int) ((int) (data[offset] * multipliers[0]) * (1 / PASS1_SCALE)) + 128;
+			IDCTEngine.fillBlock(output, outputOffset, stride, (byte) IDCTEngine.clamp(dcval));
+			return;
+		}
 
 		for (int i = 0; i < 8; i++) {
-			final float g0 = data[0 * 8 + i] * s0;
-			final float g1 = data[4 * 8 + i] * s4;
-			final float g2 = data[2 * 8 + i] * s2;
-			final float g3 = data[6 * 8 + i] * s6;
-			final float g4 = data[5 * 8 + i] * s5;
-			final float g5 = data[1 * 8 + i] * s1;
-			final float g6 = data[7 * 8 + i] * s7;
-			final float g7 = data[3 * 8 + i] * s3;
+			final float g0 = data[offset + 0 * 8 + i] * multipliers[0 * 8 + i];
+			final float g1 = data[offset + 4 * 8 + i] * multipliers[4 * 8 + i];
+			final float g2 = data[offset + 2 * 8 + i] * multipliers[2 * 8 + i];
+			final float g3 = data[offset + 6 * 8 + i] * multipliers[6 * 8 + i];
+			final float g4 = data[offset + 5 * 8 + i] * multipliers[5 * 8 + i];
+			final float g5 = data[offset + 1 * 8 + i] * multipliers[1 * 8 + i];
+			final float g6 = data[offset + 7 * 8 + i] * multipliers[7 * 8 + i];
+			final float g7 = data[offset + 3 * 8 + i] * multipliers[3 * 8 + i];
 
 			final float f0 = g0;
 			final float f1 = g1;
@@ -313,25 +2224,25 @@ class JPEGDecoder {
 			final float b6 = c6 - c7;
 			final float b7 = c7;
 
-			data[0 * 8 + i] = (int) (b0 + b7);
-			data[1 * 8 + i] = (int) (b1 + b6);
-			data[2 * 8 + i] = (int) (b2 + b5);
-			data[3 * 8 + i] = (int) (b3 + b4);
-			data[4 * 8 + i] = (int) (b3 - b4);
-			data[5 * 8 + i] = (int) (b2 - b5);
-			data[6 * 8 + i] = (int) (b1 - b6);
-			data[7 * 8 + i] = (int) (b0 - b7);
+			workspace[0 * 8 + i] = (int) (b0 + b7);
+			workspace[1 * 8 + i] = (int) (b1 + b6);
+			workspace[2 * 8 + i] = (int) (b2 + b5);
+			workspace[3 * 8 + i] = (int) (b3 + b4);
+			workspace[4 * 8 + i] = (int) (b3 - b4);
+			workspace[5 * 8 + i] = (int) (b2 - b5);
+			workspace[6 * 8 + i] = (int) (b1 - b6);
+			workspace[7 * 8 + i] = (int) (b0 - b7);
 		}
 
 		for (int i = 0; i < 8; i++) {
-			final float g0 = data[i * 8 + 0] * s0;
-			final float g1 = data[i * 8 + 4] * s4;
-			final float g2 = data[i * 8 + 2] * s2;
-			final float g3 = data[i * 8 + 6] * s6;
-			final float g4 = data[i * 8 + 5] * s5;
-			final float g5 = data[i * 8 + 1] * s1;
-			final float g6 = data[i * 8 + 7] * s7;
-			final float g7 = data[i * 8 + 3] * s3;
+			final float g0 = workspace[i * 8 + 0] * (1 / PASS1_SCALE);
+			final float g1 = workspace[i * 8 + 4] * (1 / PASS1_SCALE);
+			final float g2 = workspace[i * 8 + 2] * (1 / PASS1_SCALE);
+			final float g3 = workspace[i * 8 + 6] * (1 / PASS1_SCALE);
+			final float g4 = workspace[i * 8 + 5] * (1 / PASS1_SCALE);
+			final float g5 = workspace[i * 8 + 1] * (1 / PASS1_SCALE);
+			final float g6 = workspace[i * 8 + 7] * (1 / PASS1_SCALE);
+			final float g7 = workspace[i * 8 + 3] * (1 / PASS1_SCALE);
 
 			final float f0 = g0;
 			final float f1 = g1;
@@ -381,198 +2292,803 @@ class JPEGDecoder {
 			final float b6 = c6 - c7;
 			final float b7 = c7;
 
-			data[i * 8 + 0] = (int) (b0 + b7) + 128;
-			data[i * 8 + 1] = (int) (b1 + b6) + 128;
-			data[i * 8 + 2] = (int) (b2 + b5) + 128;
-			data[i * 8 + 3] = (int) (b3 + b4) + 128;
-			data[i * 8 + 4] = (int) (b3 - b4) + 128;
-			data[i * 8 + 5] = (int) (b2 - b5) + 128;
-			data[i * 8 + 6] = (int) (b1 - b6) + 128;
-			data[i * 8 + 7] = (int) (b0 - b7) + 128;
+			output[outputOffset + i * stride + 0] = (byte) IDCTEngine.clamp((int) (b0 + b7) + 128);
+			output[outputOffset + i * stride + 1] = (byte) IDCTEngine.clamp((int) (b1 + b6) + 128);
+			output[outputOffset + i * stride + 2] = (byte) IDCTEngine.clamp((int) (b2 + b5) + 128);
+			output[outputOffset + i * stride + 3] = (byte) IDCTEngine.clamp((int) (b3 + b4) + 128);
+			output[outputOffset + i * stride + 4] = (byte) IDCTEngine.clamp((int) (b3 - b4) + 128);
+			output[outputOffset + i * stride + 5] = (byte) IDCTEngine.clamp((int) (b2 - b5) + 128);
+			output[outputOffset + i * stride + 6] = (byte) IDCTEngine.clamp((int) (b1 - b6) + 128);
+			output[outputOffset + i * stride + 7] = (byte) IDCTEngine.clamp((int) (b0 - b7) + 128);
 		}
 	}
+}
 
-	public void IDCT(JPEGHeader header) {
-		int horizontalBlockCount = header.getHorizontalBlockCount();
+// reduced size inverse DCTs for 1/2, 1/4 and 1/8 scaled decoding, port of libjpeg's jidctred.c.
+// Like IDCT8x8 they dequantize while reading and write size x size samples to rows of stride bytes
+class ScaledIDCT {
+	static final int CONST_BITS = IslowIDCTEngine.CONST_BITS;
+	static final int PASS1_BITS = IslowIDCTEngine.PASS1_BITS;
+
+	static final int FIX_0_211164243 = 1730;
+	static final int FIX_0_509795579 = 4176;
+	static final int FIX_0_601344887 = 4926;
+	static final int FIX_0_720959822 = 5906;
+	static final int FIX_0_765366865 = 6270;
+	static final int FIX_0_850430095 = 6967;
+	static final int FIX_0_899976223 = 7373;
+	static final int FIX_1_061594337 = 8697;
+	static final int FIX_1_272758580 = 10426;
+	static final int FIX_1_451774981 = 11893;
+	static final int FIX_1_847759065 = 15137;
+	static final int FIX_2_172734803 = 17799;
+	static final int FIX_2_562915447 = 20995;
+	static final int FIX_3_624509785 = 29692;
+
+	static int descale(int x, int n) {
+		return IslowIDCTEngine.descale(x, n);
+	}
 
-		if (header.getHorizontalSamplingFactor() == 2 && header.getWidth() % 2 != 0) {
-			horizontalBlockCount = header.getHorizontalBlockCount() + 1;
+	static void fill(byte[] output, int outputOffset, int stride, int size, byte sample) {
+		for (int i = 0; i < size; i++) {
+			int row = outputOffset + i * stride;
+			for (int j = 0; j < size; j++) {
+				output[row + j] = sample;
+			}
 		}
+	}
 
-		for (int i = 0; i < header.getVerticalBlockCount(); i += header.getVerticalSamplingFactor()) {
-			for (int j = 0; j < header.getHorizontalBlockCount(); j += header.getHorizontalSamplingFactor()) {
-				for (int k = 1; k < header.getComponents().size(); k++) {
-					Component component = header.getComponents().get(k);
-					int vMax = component.getVerticalSamplingFactor();
-					int hMax = component.getHorizontalSamplingFactor();
-					for (int v = 0; v < vMax; v++) {
-						for (int h = 0; h < hMax; h++) {
-							int verticalOffset = i + v;
-							int horizontalOffset = j + h;
-							Block block = blocks
-									.get(verticalOffset * horizontalBlockCount + horizontalOffset);
-							int[] componentData = block.getComponentDataByID(k);
-
-							IDCT8x8(componentData);
-						}
-					}
-				}
+	// inverse DCT of one block to size x size samples, size 8 is the engine's full transform
+	static void IDCT(IDCTEngine engine, int size, int[] data, int offset, int eob, QuantizationTable table,
+			int[] workspace, byte[] output, int outputOffset, int stride) {
+		switch (size) {
+			case 8:
+				engine.IDCT8x8(data, offset, eob, table, workspace, output, outputOffset, stride);
+				break;
+			case 4:
+				IDCT4x4(data, offset, eob, table, workspace, output, outputOffset, stride);
+				break;
+			case 2:
+				IDCT2x2(data, offset, eob, table, workspace, output, outputOffset, stride);
+				break;
+			default:
+				IDCT1x1(data, offset, table, output, outputOffset);
+				break;
+		}
+	}
+
+	static void IDCT1x1(int[] data, int offset, QuantizationTable table, byte[] output, int outputOffset) {
+		output[outputOffset] = (byte) IDCTEngine.clamp(descale(data[offset] * table.getData()[0], 3) + 128);
+	}
+
+	static void IDCT4x4(final int[] data, final int offset, final int eob, final QuantizationTable table,
+			final int[] workspace, final byte[] output, final int outputOffset, final int stride) {
+		final int[] quantization = table.getData();
+		if (eob == 0) { // DC only
+			int dcval = descale((data[offset] * quantization[0]) << PASS1_BITS, PASS1_BITS + 3);
+			fill(output, outputOffset, stride, 4, (byte) IDCTEngine.clamp(dcval + 128));
+			return;
+		}
+
+		// Pass 1: columns, column 4 is not used by the second pass
+		for (int i = 0; i < 8; i++) {
+			if (i == 4) {
+				continue;
+			}
+			int in = offset + i;
+			if (data[in + 8] == 0 && data[in + 16] == 0 && data[in + 24] == 0 && data[in + 40] == 0
+					&& data[in + 48] == 0 && data[in + 56] == 0) {
+				int dcval = (data[in] * quantization[i]) << PASS1_BITS;
+				workspace[i] = dcval;
+				workspace[8 + i] = dcval;
+				workspace[16 + i] = dcval;
+				workspace[24 + i] = dcval;
+				continue;
+			}
+
+			// Even part
+			int tmp0 = (data[in] * quantization[i]) << (CONST_BITS + 1);
+			int tmp2 = data[in + 16] * quantization[i + 16] * FIX_1_847759065
+					- data[in + 48] * quantization[i + 48] * FIX_0_765366865;
+			int tmp10 = tmp0 + tmp2;
+			int tmp12 = tmp0 - tmp2;
+
+			// Odd part
+			int z1 = data[in + 56] * quantization[i + 56];
+			int z2 = data[in + 40] * quantization[i + 40];
+			int z3 = data[in + 24] * quantization[i + 24];
+			int z4 = data[in + 8] * quantization[i + 8];
+			tmp0 = z1 * -FIX_0_211164243 + z2 * FIX_1_451774981 + z3 * -FIX_2_172734803 + z4 * FIX_1_061594337;
+			tmp2 = z1 * -FIX_0_509795579 + z2 * -FIX_0_601344887 + z3 * FIX_0_899976223 + z4 * FIX_2_562915447;
+
+			workspace[i] = descale(tmp10 + tmp2, CONST_BITS - PASS1_BITS + 1);
+			workspace[24 + i] = descale(tmp10 - tmp2, CONST_BITS - PASS1_BITS + 1);
+			workspace[8 + i] = descale(tmp12 + tmp0, CONST_BITS - PASS1_BITS + 1);
+			workspace[16 + i] = descale(tmp12 - tmp0, CONST_BITS - PASS1_BITS + 1);
+		}
+
+		// Pass 2: 4 rows
+		for (int i = 0; i < 4; i++) {
+			int ws = i * 8;
+			int out = outputOffset + i * stride;
+			if (workspace[ws + 1] == 0 && workspace[ws + 2] == 0 && workspace[ws + 3] == 0 && workspace[ws + 5] == 0
+					&& workspace[ws + 6] == 0 && workspace[ws + 7] == 0) {
+				byte sample = (byte) IDCTEngine.clamp(descale(workspace[ws], PASS1_BITS + 3) + 128);
+				output[out] = sample;
+				output[out + 1] = sample;
+				output[out + 2] = sample;
+				output[out + 3] = sample;
+				continue;
 			}
+
+			// Even part
+			int tmp0 = workspace[ws] << (CONST_BITS + 1);
+			int tmp2 = workspace[ws + 2] * FIX_1_847759065 - workspace[ws + 6] * FIX_0_765366865;
+			int tmp10 = tmp0 + tmp2;
+			int tmp12 = tmp0 - tmp2;
+
+			// Odd part
+			int z1 = workspace[ws + 7];
+			int z2 = workspace[ws + 5];
+			int z3 = workspace[ws + 3];
+			int z4 = workspace[ws + 1];
+			tmp0 = z1 * -FIX_0_211164243 + z2 * FIX_1_451774981 + z3 * -FIX_2_172734803 + z4 * FIX_1_061594337;
+			tmp2 = z1 * -FIX_0_509795579 + z2 * -FIX_0_601344887 + z3 * FIX_0_899976223 + z4 * FIX_2_562915447;
+
+			int shift = CONST_BITS + PASS1_BITS + 3 + 1;
+			output[out] = (byte) IDCTEngine.clamp(descale(tmp10 + tmp2, shift) + 128);
+			output[out + 3] = (byte) IDCTEngine.clamp(descale(tmp10 - tmp2, shift) + 128);
+			output[out + 1] = (byte) IDCTEngine.clamp(descale(tmp12 + tmp0, shift) + 128);
+			output[out + 2] = (byte) IDCTEngine.clamp(descale(tmp12 - tmp0, shift) + 128);
 		}
 	}
 
-	public void YCbCr2RGB(JPEGHeader header) {
-		int vMax = header.getVerticalSamplingFactor();
-		int hMax = header.getHorizontalSamplingFactor();
-		int horizontalBlockCount = header.getHorizontalBlockCount();
+	static void IDCT2x2(final int[] data, final int offset, final int eob, final QuantizationTable table,
+			final int[] workspace, final byte[] output, final int outputOffset, final int stride) {
+		final int[] quantization = table.getData();
+		if (eob == 0) { // DC only
+			int dcval = descale((data[offset] * quantization[0]) << PASS1_BITS, PASS1_BITS + 3);
+			fill(output, outputOffset, stride, 2, (byte) IDCTEngine.clamp(dcval + 128));
+			return;
+		}
+
+		// Pass 1: columns, the even ones but column 0 are not used by the second pass
+		for (int i = 0; i < 8; i++) {
+			if (i == 2 || i == 4 || i == 6) {
+				continue;
+			}
+			int in = offset + i;
+			if (data[in + 8] == 0 && data[in + 24] == 0 && data[in + 40] == 0 && data[in + 56] == 0) {
+				int dcval = (data[in] * quantization[i]) << PASS1_BITS;
+				workspace[i] = dcval;
+				workspace[8 + i] = dcval;
+				continue;
+			}
+
+			int tmp10 = (data[in] * quantization[i]) << (CONST_BITS + 2);
+			int tmp0 = data[in + 56] * quantization[i + 56] * -FIX_0_720959822
+					+ data[in + 40] * quantization[i + 40] * FIX_0_850430095
+					+ data[in + 24] * quantization[i + 24] * -FIX_1_272758580
+					+ data[in + 8] * quantization[i + 8] * FIX_3_624509785;
+
+			workspace[i] = descale(tmp10 + tmp0, CONST_BITS - PASS1_BITS + 2);
+			workspace[8 + i] = descale(tmp10 - tmp0, CONST_BITS - PASS1_BITS + 2);
+		}
 
-		if (header.getHorizontalSamplingFactor() == 2 && header.getWidth() % 2 != 0) {
-			horizontalBlockCount = header.getHorizontalBlockCount() + 1;
+		// Pass 2: 2 rows
+		for (int i = 0; i < 2; i++) {
+			int ws = i * 8;
+			int out = outputOffset + i * stride;
+			if (workspace[ws + 1] == 0 && workspace[ws + 3] == 0 && workspace[ws + 5] == 0 && workspace[ws + 7] == 0) {
+				byte sample = (byte) IDCTEngine.clamp(descale(workspace[ws], PASS1_BITS + 3) + 128);
+				output[out] = sample;
+				output[out + 1] = sample;
+				continue;
+			}
+
+			int tmp10 = workspace[ws] << (CONST_BITS + 2);
+			int tmp0 = workspace[ws + 7] * -FIX_0_720959822 + workspace[ws + 5] * FIX_0_850430095
+					+ workspace[ws + 3] * -FIX_1_272758580 + workspace[ws + 1] * FIX_3_624509785;
+
+			int shift = CONST_BITS + PASS1_BITS + 3 + 2;
+			output[out] = (byte) IDCTEngine.clamp(descale(tmp10 + tmp0, shift) + 128);
+			output[out + 1] = (byte) IDCTEngine.clamp(descale(tmp10 - tmp0, shift) + 128);
+		}
+	}
+}
+
+// YCbCr to RGB with libjpeg's fixed-point tables (jdcolor.c), rounds where the double formula
+// truncated toward zero so channels differ from it by at most 1
+class ColorConverter {
+	static final int SCALEBITS = 16;
+	static final int ONE_HALF = 1 << (SCALEBITS - 1);
+	static final int RANGE_OFFSET = 256;
+
+	static final int[] CR_R = new int[256]; // Cr to R term
+	static final int[] CB_B = new int[256]; // Cb to B term
+	static final int[] CR_G = new int[256]; // Cr to G term, still scaled up
+	static final int[] CB_G = new int[256]; // Cb to G term including rounding, still scaled up
+	static final byte[] RANGE_LIMIT = new byte[RANGE_OFFSET + 256 + RANGE_OFFSET]; // clamps [-256, 512) to [0 - 255]
+
+	static final ColorConverter BGR = new ColorConverter(true);
+	static final ColorConverter RGB = new ColorConverter(false);
+
+	static {
+		for (int i = 0; i < 256; i++) {
+			int x = i - 128;
+			CR_R[i] = (fix(1.40200) * x + ONE_HALF) >> SCALEBITS;
+			CB_B[i] = (fix(1.77200) * x + ONE_HALF) >> SCALEBITS;
+			CR_G[i] = -fix(0.71414) * x;
+			CB_G[i] = -fix(0.34414) * x + ONE_HALF;
 		}
+		for (int i = 0; i < RANGE_LIMIT.length; i++) {
+			RANGE_LIMIT[i] = (byte) IDCTEngine.clamp(i - RANGE_OFFSET);
+		}
+	}
 
-		for (int i = 0; i < header.getVerticalBlockCount(); i += header.getVerticalSamplingFactor()) {
-			for (int j = 0; j < header.getHorizontalBlockCount(); j += header.getHorizontalSamplingFactor()) {
-				Block chromaBlock = blocks.get(i * horizontalBlockCount + j);
-				int[] cbData = chromaBlock.getComponentDataByID(2);
-				int[] crData = chromaBlock.getComponentDataByID(3);
+	static int fix(double x) {
+		return (int) (x * (1 << SCALEBITS) + 0.5);
+	}
 
-				int[][][] yDataRgb = null;
-				for (int v = 0; v < vMax; v++) {
-					for (int h = 0; h < hMax; h++) {
-						int verticalOffset = i + v;
-						int horizontalOffset = j + h;
-						Block yBlock = blocks
-								.get(verticalOffset * horizontalBlockCount + horizontalOffset);
-						int[] yData = yBlock.getComponentDataByID(1);
-
-						for (int w = 0; w < 8; w++) {
-							for (int z = 0; z < 8; z++) {
-								int chromaPixelIndex = (w / vMax + 4 * v) * 8 + (z / hMax + 4 * h);
-								int yPixelIndex = w * 8 + z;
-
-								int r = (int) (yData[yPixelIndex] + 1.402 * (crData[chromaPixelIndex] - 128));
-								int g = (int) (yData[yPixelIndex] - 0.34414 * (cbData[chromaPixelIndex] - 128)
-										- 0.71414 * (crData[chromaPixelIndex] - 128));
-								int b = (int) (yData[yPixelIndex] + 1.772 * (cbData[chromaPixelIndex] - 128));
-
-								// prevent out of range [0 - 255]
-								r = Math.max(0, Math.min(255, r));
-								g = Math.max(0, Math.min(255, g));
-								b = Math.max(0, Math.min(255, b));
-
-								yDataRgb = yBlock.getRgb();
-								yDataRgb[w][yPixelIndex % 8][0] = r;
-								yDataRgb[w][yPixelIndex % 8][1] = g;
-								yDataRgb[w][yPixelIndex % 8][2] = b;
-							}
-						}
+	int redOffset;
+	int blueOffset;
+
+	ColorConverter(boolean bgr) {
+		this.redOffset = bgr ? 2 : 0;
+		this.blueOffset = bgr ? 0 : 2;
+	}
+
+	// chroma column of every output column, sampling factors relative to the largest ones
+	static int[] chromaColumns(int width, int hChroma, int hMax) {
+		int[] columns = new int[width];
+		for (int x = 0; x < width; x++) {
+			columns[x] = x * hChroma / hMax;
+		}
+		return columns;
+	}
+
+	// one line of width pixels into output[outputOffset..], 3 bytes per pixel
+	public void convertRow(byte[] yData, int yOffset, byte[] cbData, byte[] crData, int chromaOffset,
+			int[] chromaColumns, byte[] output, int outputOffset, int width) {
+		convertColumns(yData, yOffset, cbData, crData, chromaOffset, chromaColumns, output, outputOffset, 0, width);
+	}
+
+	// columns [firstColumn, lastColumn) of a line
+	void convertColumns(byte[] yData, int yOffset, byte[] cbData, byte[] crData, int chromaOffset,
+			int[] chromaColumns, byte[] output, int outputOffset, int firstColumn, int lastColumn) {
+		int out = outputOffset + firstColumn * 3;
+		for (int x = firstColumn; x < lastColumn; x++) {
+			int luma = (yData[yOffset + x] & 0xFF) + RANGE_OFFSET;
+			int chromaIndex = chromaOffset + chromaColumns[x];
+			int cb = cbData[chromaIndex] & 0xFF;
+			int cr = crData[chromaIndex] & 0xFF;
+
+			output[out + redOffset] = RANGE_LIMIT[luma + CR_R[cr]];
+			output[out + 1] = RANGE_LIMIT[luma + ((CB_G[cb] + CR_G[cr]) >> SCALEBITS)];
+			output[out + blueOffset] = RANGE_LIMIT[luma + CB_B[cb]];
+			out += 3;
+		}
+	}
+
+	// luma only line, Cb = Cr = 128
+	public void convertGrayRow(byte[] yData, int yOffset, byte[] output, int outputOffset, int width) {
+		for (int x = 0; x < width; x++) {
+			byte luma = yData[yOffset + x];
+			output[outputOffset++] = luma;
+			output[outputOffset++] = luma;
+			output[outputOffset++] = luma;
+		}
+	}
+}
+
+// expands the lines of a component plane sampled below the largest factors to full resolution lines. Fast
+// repeats the nearest sample, fancy interpolates the 2:1 ratios with libjpeg's triangle filter (3/4 of the
+// nearer sample and 1/4 of the further one) and is fast for the other ratios. Each ratio has its own loop
+abstract class Upsampler {
+	// for a component sampled h x v in an image sampled hMax x vMax at most, with lines of lineWidth samples at
+	// full resolution
+	static Upsampler of(int h, int v, int hMax, int vMax, int lineWidth, boolean fancy) {
+		if (fancy && readsNeighbourColumns(h, v, hMax, vMax)) {
+			return readsNeighbourLines(h, v, hMax, vMax) ? new H2V2FancyUpsampler() : new H2V1FancyUpsampler();
+		}
+		if (fancy && readsNeighbourLines(h, v, hMax, vMax)) {
+			return new H1V2FancyUpsampler();
+		}
+		return new FastUpsampler(h, v, hMax, vMax, lineWidth);
+	}
+
+	// whether fancy upsampling reads the samples left and right of each one: h2v1 and h2v2
+	static boolean readsNeighbourColumns(int h, int v, int hMax, int vMax) {
+		return hMax == 2 * h && (vMax == v || vMax == 2 * v);
+	}
+
+	// whether fancy upsampling reads the lines above and below each one: h2v2 and h1v2
+	static boolean readsNeighbourLines(int h, int v, int hMax, int vMax) {
+		return vMax == 2 * v && (hMax == h || hMax == 2 * h);
+	}
+
+	// whether the lines above or below the one of an output line are read, which the fused decoding does not have
+	boolean needsContextLines() {
+		return false;
+	}
+
+	// line y of the full resolution image, counted from the first line of the plane, to output[0..]. The plane
+	// has stride samples per line, of which width and lines are in the image, the rest is padding
+	abstract void upsample(byte[] plane, int stride, int width, int lines, int y, byte[] output);
+}
+
+class FastUpsampler extends Upsampler {
+	int v;
+	int vMax;
+	int hRatio;
+	int[] columns; // plane column of each output column, when the horizontal ratio is not a whole number
+
+	FastUpsampler(int h, int v, int hMax, int vMax, int lineWidth) {
+		this.v = v;
+		this.vMax = vMax;
+		this.hRatio = hMax % h == 0 ? hMax / h : 0;
+		if (hRatio == 0) {
+			this.columns = ColorConverter.chromaColumns(lineWidth, h, hMax);
+		}
+	}
+
+	@Override
+	void upsample(byte[] plane, int stride, int width, int lines, int y, byte[] output) {
+		int offset = y * v / vMax * stride;
+		switch (hRatio) {
+			case 1:
+				System.arraycopy(plane, offset, output, 0, stride);
+				break;
+			case 2:
+				for (int x = 0, out = 0; x < stride; x++, out += 2) {
+					byte sample = plane[offset + x];
+					output[out] = sample;
+					output[out + 1] = sample;
+				}
+				break;
+			case 4:
+				for (int x = 0, out = 0; x < stride; x++, out += 4) {
+					byte sample = plane[offset + x];
+					output[out] = sample;
+					output[out + 1] = sample;
+					output[out + 2] = sample;
+					output[out + 3] = sample;
+				}
+				break;
+			case 0:
+				for (int x = 0; x < columns.length; x++) {
+					output[x] = plane[offset + columns[x]];
+				}
+				break;
+			default:
+				for (int x = 0, out = 0; x < stride; x++) {
+					byte sample = plane[offset + x];
+					for (int r = 0; r < hRatio; r++) {
+						output[out++] = sample;
 					}
 				}
+				break;
+		}
+	}
+}
+
+// libjpeg's h2v1_fancy_upsample: each output sample is 3/4 of the nearest sample and 1/4 of the next nearest
+class H2V1FancyUpsampler extends Upsampler {
+	@Override
+	void upsample(byte[] plane, int stride, int width, int lines, int y, byte[] output) {
+		int in = y * stride;
+		int sample = plane[in] & 0xFF;
+		if (width == 1) {
+			output[0] = (byte) sample;
+			output[1] = (byte) sample;
+			return;
+		}
+		output[0] = (byte) sample;
+		output[1] = (byte) ((sample * 3 + (plane[in + 1] & 0xFF) + 2) >> 2);
+		int out = 2;
+		for (int x = in + 1; x < in + width - 1; x++) {
+			int nearest = (plane[x] & 0xFF) * 3;
+			output[out++] = (byte) ((nearest + (plane[x - 1] & 0xFF) + 1) >> 2);
+			output[out++] = (byte) ((nearest + (plane[x + 1] & 0xFF) + 2) >> 2);
+		}
+		sample = plane[in + width - 1] & 0xFF;
+		output[out++] = (byte) ((sample * 3 + (plane[in + width - 2] & 0xFF) + 1) >> 2);
+		output[out] = (byte) sample;
+	}
+}
+
+// libjpeg's h2v2_fancy_upsample: the triangle filter across the nearest line and the next nearest one, whose
+// weighted column sums are then filtered like h2v1. Lines past the image edges repeat the edge line
+class H2V2FancyUpsampler extends Upsampler {
+	@Override
+	boolean needsContextLines() {
+		return true;
+	}
+
+	@Override
+	void upsample(byte[] plane, int stride, int width, int lines, int y, byte[] output) {
+		int line = y >> 1;
+		int other = (y & 1) == 0 ? Math.max(line - 1, 0) : Math.min(line + 1, lines - 1);
+		int in0 = line * stride;
+		int in1 = other * stride;
+		int thisColumnSum = (plane[in0] & 0xFF) * 3 + (plane[in1] & 0xFF);
+		if (width == 1) {
+			output[0] = (byte) ((thisColumnSum * 4 + 8) >> 4);
+			output[1] = (byte) ((thisColumnSum * 4 + 7) >> 4);
+			return;
+		}
+		int nextColumnSum = (plane[in0 + 1] & 0xFF) * 3 + (plane[in1 + 1] & 0xFF);
+		output[0] = (byte) ((thisColumnSum * 4 + 8) >> 4);
+		output[1] = (byte) ((thisColumnSum * 3 + nextColumnSum + 7) >> 4);
+		int lastColumnSum = thisColumnSum;
+		thisColumnSum = nextColumnSum;
+		int out = 2;
+		for (int x = 2; x < width; x++) {
+			nextColumnSum = (plane[in0 + x] & 0xFF) * 3 + (plane[in1 + x] & 0xFF);
+			output[out++] = (byte) ((thisColumnSum * 3 + lastColumnSum + 8) >> 4);
+			output[out++] = (byte) ((thisColumnSum * 3 + nextColumnSum + 7) >> 4);
+			lastColumnSum = thisColumnSum;
+			thisColumnSum = nextColumnSum;
+		}
+		output[out++] = (byte) ((thisColumnSum * 3 + lastColumnSum + 8) >> 4);
+		output[out] = (byte) ((thisColumnSum * 4 + 7) >> 4);
+	}
+}
+
+// libjpeg-turbo's h1v2_fancy_upsample, the vertical half of h2v2
+class H1V2FancyUpsampler extends Upsampler {
+	@Override
+	boolean needsContextLines() {
+		return true;
+	}
+
+	@Override
+	void upsample(byte[] plane, int stride, int width, int lines, int y, byte[] output) {
+		int line = y >> 1;
+		int other = (y & 1) == 0 ? Math.max(line - 1, 0) : Math.min(line + 1, lines - 1);
+		int bias = (y & 1) == 0 ? 1 : 2;
+		int in0 = line * stride;
+		int in1 = other * stride;
+		for (int x = 0; x < width; x++) {
+			output[x] = (byte) (((plane[in0 + x] & 0xFF) * 3 + (plane[in1 + x] & 0xFF) + bias) >> 2);
+		}
+	}
+}
+
+// the Vector API kernels of VectorKernels.java, null when they were not compiled, the
+// jdk.incubator.vector module is not added (--add-modules) or the CPU lacks 256 bit vectors. They are
+// reached through method handles so that this file builds without them
+class VectorSupport {
+	static final MethodHandle IDCT_COLUMNS = find("IDCTColumns",
+			MethodType.methodType(void.class, int[].class, int.class, int[].class, int[].class));
+	static final MethodHandle CONVERT_COLUMNS = find("convertColumns", MethodType.methodType(int.class, byte[].class,
+			int.class, byte[].class, byte[].class, int.class, int.class, byte[].class, int.class, int.class, int.class,
+			int.class, int.class));
+	static final IDCTEngine IDCT_ENGINE = IDCT_COLUMNS != null ? new VectorIDCTEngine() : null;
+	static final ColorConverter BGR = CONVERT_COLUMNS != null ? new VectorColorConverter(true) : null;
+	static final ColorConverter RGB = CONVERT_COLUMNS != null ? new VectorColorConverter(false) : null;
+
+	static MethodHandle find(String name, MethodType type) {
+		try {
+			Class<?> kernels = Class.forName("VectorKernels");
+			if (!kernels.getDeclaredField("SUPPORTED").getBoolean(null)) {
+				return null;
+			}
+			return MethodHandles.lookup().findStatic(kernels, name, type);
+		} catch (ReflectiveOperationException | LinkageError e) {
+			return null;
+		}
+	}
+
+	// the kernels throw nothing checked, invokeExact only declares Throwable
+	static RuntimeException unchecked(Throwable e) {
+		if (e instanceof Error) {
+			throw (Error) e;
+		}
+		return e instanceof RuntimeException ? (RuntimeException) e : new IllegalStateException(e);
+	}
+
+	static boolean isAvailable() {
+		return IDCT_ENGINE != null && BGR != null;
+	}
+
+	// the vector engine computing what engine computes, or engine itself when there is none
+	static IDCTEngine vectorVariant(IDCTEngine engine) {
+		return IDCT_ENGINE != null && engine instanceof IslowIDCTEngine ? IDCT_ENGINE : engine;
+	}
+}
+
+// IslowIDCTEngine with the column pass of VectorKernels, each lane computes one column. Rows need the lanes of
+// each vector together, which the scalar pass 2 does better
+class VectorIDCTEngine implements IDCTEngine {
+	public void IDCT8x8(final int[] data, final int offset, final int eob, final QuantizationTable table,
+			final int[] workspace, final byte[] output, final int outputOffset, final int stride) {
+		final int[] quantization = table.getData();
+		if (eob == 0) { // DC only
+			int dcval = IslowIDCTEngine.descale((data[offset] * quantization[0]) << IslowIDCTEngine.PASS1_BITS,
+					IslowIDCTEngine.PASS1_BITS + 3);
+			IDCTEngine.fillBlock(output, outputOffset, stride, (byte) IDCTEngine.clamp(dcval + 128));
+			return;
+		}
+		try {
+			VectorSupport.IDCT_COLUMNS.invokeExact(data, offset, quantization, workspace);
+		} catch (Throwable e) {
+			throw VectorSupport.unchecked(e);
+		}
+		IslowIDCTEngine.rows(workspace, IslowIDCTEngine.LAST_COLUMN[eob] + 1, output, outputOffset, stride);
+	}
+}
+
+// ColorConverter over 8 pixels at a time in VectorKernels. Subsampled chroma (1, 2 or 4 luma columns per chroma
+// column) is replicated across the line with a shuffle. Other ratios read straight from the planes (3x1,
+// fractional ones) take the scalar code; images going through an Upsampler (-upsample fancy, or luma and
+// chroma subsampled apart) are converted with the kernel from full resolution lines, but the upsampling
+// itself is scalar
+class VectorColorConverter extends ColorConverter {
+	VectorColorConverter(boolean bgr) {
+		super(bgr);
+	}
+
+	// columns from start on reading the chroma column of start
+	static int run(int[] chromaColumns, int start, int width) {
+		int end = start + 1;
+		while (end < width && chromaColumns[end] == chromaColumns[start]) {
+			end++;
+		}
+		return end - start;
+	}
+
+	// pixels per chroma sample from column start on when it is 1, 2 or 4 and start is the first column of a
+	// sample, 0 otherwise; the sampling pattern repeats within 8 columns for sampling factors up to 4
+	static int replicationRatio(int[] chromaColumns, int start, int width) {
+		int ratio = run(chromaColumns, start, width);
+		if (ratio != 1 && ratio != 2 && ratio != 4) {
+			return 0;
+		}
+		for (int x = start; x < Math.min(width, start + 8); x++) {
+			if (chromaColumns[x] != chromaColumns[start] + (x - start) / ratio) {
+				return 0;
 			}
 		}
+		return ratio;
+	}
+
+	@Override
+	public void convertRow(byte[] yData, int yOffset, byte[] cbData, byte[] crData, int chromaOffset,
+			int[] chromaColumns, byte[] output, int outputOffset, int width) {
+		// a crop may start inside a chroma sample, whose columns are converted alone
+		int first = run(chromaColumns, 0, width);
+		int start = first < width && first < run(chromaColumns, first, width) ? first : 0;
+		int ratio = replicationRatio(chromaColumns, start, width);
+		if (ratio == 0) {
+			convertColumns(yData, yOffset, cbData, crData, chromaOffset, chromaColumns, output, outputOffset, 0, width);
+			return;
+		}
+		convertColumns(yData, yOffset, cbData, crData, chromaOffset, chromaColumns, output, outputOffset, 0, start);
+		int x;
+		try {
+			x = (int) VectorSupport.CONVERT_COLUMNS.invokeExact(yData, yOffset, cbData, crData,
+					chromaOffset + chromaColumns[start], ratio, output, outputOffset, start, width, redOffset, blueOffset);
+		} catch (Throwable e) {
+			throw VectorSupport.unchecked(e);
+		}
+		convertColumns(yData, yOffset, cbData, crData, chromaOffset, chromaColumns, output, outputOffset, x, width);
+	}
+}
+
+// runs body over [from, to) on a fork/join pool, ranges are split in halves down to grain items
+class RangeTask extends RecursiveAction {
+	private static final long serialVersionUID = 1L;
+
+	interface Body {
+		void run(int from, int to);
+	}
+
+	int from;
+	int to;
+	int grain;
+	Body body;
+
+	RangeTask(int from, int to, int grain, Body body) {
+		this.from = from;
+		this.to = to;
+		this.grain = grain;
+		this.body = body;
+	}
+
+	// a null pool runs the whole range on the caller
+	public static void run(ForkJoinPool pool, int from, int to, int grain, Body body) {
+		if (pool == null || to - from <= grain) {
+			body.run(from, to);
+			return;
+		}
+		pool.invoke(new RangeTask(from, to, grain, body));
+	}
+
+	@Override
+	protected void compute() {
+		if (to - from <= grain) {
+			body.run(from, to);
+			return;
+		}
+		int middle = (from + to) >>> 1;
+		invokeAll(new RangeTask(from, middle, grain, body), new RangeTask(middle, to, grain, body));
 	}
 }
 
+// MSB-first bit reader keeping up to 64 bits of the input in an accumulator,
+// byte stuffing is removed while filling
 class BitInputStream {
-	List<Integer> data;
-	int byteIndex;
-	int bitIndex;
+	byte[] data;
+	int position; // next byte to load into the accumulator
+	int end;
+	long bitBuffer; // the lowest bitCount bits are not consumed yet
+	int bitCount;
+
+	BitInputStream(byte[] data, int offset, int length) {
+		reset(data, offset, length);
+	}
 
-	BitInputStream(List<Integer> data) {
+	// start over on other data
+	public void reset(byte[] data, int offset, int length) {
 		this.data = data;
-		this.byteIndex = 0;
-		this.bitIndex = 7;
+		this.position = offset;
+		this.end = offset + length;
+		this.bitBuffer = 0;
+		this.bitCount = 0;
 	}
 
-	public int read() {
-		if (byteIndex >= data.size()) {
-			System.out.println("Invalid bit");
-			return -1;
+	// top up the accumulator to at least 57 bits, past the end of data it is padded with zeros
+	private void fill() {
+		while (bitCount <= 56) {
+			int byteData = 0;
+			if (position < end) {
+				byteData = data[position] & 0xFF;
+				if (byteData != 0xFF) {
+					position++;
+				} else if (position + 1 < end && data[position + 1] == 0) {
+					position += 2; // stuffed 0xFF00
+				} else {
+					// a marker ends the entropy coded data
+					end = position;
+					byteData = 0;
+				}
+			}
+			bitBuffer = (bitBuffer << 8) | byteData;
+			bitCount += 8;
 		}
+	}
 
-		int bit = (data.get(byteIndex) >> bitIndex) & 0x1;
-		bitIndex -= 1;
-		if (bitIndex == -1) {
-			bitIndex = 7;
-			byteIndex += 1;
+	// next n (at most 32) bits without consuming them
+	public int peek(int n) {
+		if (bitCount < n) {
+			fill();
 		}
-
-		return bit;
+		return (int) (bitBuffer >>> (bitCount - n)) & (int) ((1L << n) - 1);
 	}
 
-	public int readNBits(int n) {
-		int result = 0;
-		for (int i = 0; i < n; i++) {
-			int bit = read();
-			if (bit == -1) {
-				System.out.println("Invalid bit");
-				return -1;
-			}
-			result <<= 1;
-			result |= bit;
+	public void skip(int n) {
+		if (bitCount < n) {
+			fill();
 		}
-		return result;
+		bitCount -= n;
+	}
+
+	public int getBits(int n) {
+		int bits = peek(n);
+		bitCount -= n;
+		return bits;
 	}
 }
 
+// canonical Huffman decoding tables of one DHT table, about 4 KB, never changed once built so that the
+// cache can hand the same instance to any number of decoders and threads
 class HuffmanTable {
-	int ID;
-	HashMap<Integer, List<Integer>> bitSymbolTable;
-	int[] tree; // used to represent the huffman tree
-
-	HuffmanTable(int ID) {
-		this.ID = ID;
-		this.bitSymbolTable = new HashMap<Integer, List<Integer>>();
-		for (int i = 0; i < 16; i++) {
-			this.bitSymbolTable.put(i + 1, new ArrayList<Integer>()); // i + 1 simply starts from index 1
+	static final int LOOKAHEAD_BITS = 9; // codes up to this length are resolved by a single lookup
+	static final int CACHE_SIZE = 64; // tables kept by of()
+
+	// built tables by their DHT bytes (16 code counts then the symbols), least recently used first
+	static final Map<ByteBuffer, HuffmanTable> CACHE = new LinkedHashMap<ByteBuffer, HuffmanTable>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<ByteBuffer, HuffmanTable> eldest) {
+			return size() > CACHE_SIZE;
 		}
-		this.tree = new int[131072];
-		for (int i = 0; i < this.tree.length; i++) {
-			this.tree[i] = Integer.MIN_VALUE; // Integer.MIN_VALUE means not reach leaf node
+	};
+
+	final int[] lookup; // (code length << 8) | symbol, 0 means the code is longer than LOOKAHEAD_BITS
+	final int[] fastAC; // (coefficient << 8) | (run << 4) | total bit length, 0 means take the slow path
+	final int[] maxCode; // largest code of each length, -1 if there is no code of that length
+	final int[] valueOffset; // index into symbols of the first code of each length minus that code
+	final int[] symbols; // symbols in canonical code order
+
+	// counts[0..15] are the numbers of codes of length 1..16, the symbols follow, as in a DHT segment
+	private HuffmanTable(byte[] table) {
+		this.lookup = new int[1 << LOOKAHEAD_BITS];
+		this.fastAC = new int[1 << LOOKAHEAD_BITS];
+		this.maxCode = new int[18];
+		this.valueOffset = new int[17];
+		this.symbols = new int[table.length - 16];
+		buildLookupTable(table);
+	}
+
+	// the table for the DHT bytes, built on first use; the standard tables of Annex K and those of a given
+	// encoder recur across images and are only built once
+	public static HuffmanTable of(byte[] table) {
+		ByteBuffer key = ByteBuffer.wrap(table);
+		synchronized (CACHE) {
+			HuffmanTable huffmanTable = CACHE.get(key);
+			if (huffmanTable == null) {
+				huffmanTable = new HuffmanTable(table);
+				CACHE.put(key, huffmanTable);
+			}
+			return huffmanTable;
 		}
 	}
 
-	public int getID() {
-		return ID;
+	public int[] getLookup() {
+		return lookup;
 	}
 
-	public HashMap<Integer, List<Integer>> getBitSymbolTable() {
-		return bitSymbolTable;
+	public int[] getFastAC() {
+		return fastAC;
 	}
 
-	public int[] getTree() {
-		return tree;
+	public int[] getMaxCode() {
+		return maxCode;
 	}
 
-	// build the huffman tree
-	// left child index: 2i + 1
-	// right child index: 2i + 2
-	/*
-	 * root(0)
-	 * / \
-	 * left(1) right(2)
-	 */
-	public void buildTree() {
-		int leftMostIdx = 1; // the first left most index should be the left child of root node
-		int size;
-		for (int i = 0; i < this.bitSymbolTable.size(); i++) {
-			size = this.bitSymbolTable.get(i + 1).size();
-			if (size == 0) {
-				leftMostIdx = (leftMostIdx << 1) + 1; // add a new level
-				continue;
-			}
+	public int[] getValueOffset() {
+		return valueOffset;
+	}
 
-			for (int j = 0; j < size; j++) {
-				this.tree[leftMostIdx] = this.bitSymbolTable.get(i + 1).get(j);
-				leftMostIdx++;
-			}
+	public int[] getSymbols() {
+		return symbols;
+	}
 
-			leftMostIdx = (leftMostIdx << 1) + 1; // add a new level
+	// assign canonical codes (JPEG Annex C) and fill the lookahead tables
+	private void buildLookupTable(byte[] table) {
+		int code = 0;
+		int k = 0;
+		for (int length = 1; length <= 16; length++) {
+			int count = table[length - 1] & 0xFF;
+			this.valueOffset[length] = k - code;
+			for (int j = 0; j < count; j++, code++, k++) {
+				if (code >= (1 << length)) {
+					throw new JPEGException("invalid huffman table: too many codes of length " + length);
+				}
+				int symbol = table[16 + k] & 0xFF;
+				this.symbols[k] = symbol;
+
+				if (length <= LOOKAHEAD_BITS) {
+					// every lookahead value starting with this code resolves to it
+					int shift = LOOKAHEAD_BITS - length;
+					for (int l = code << shift; l < (code + 1) << shift; l++) {
+						this.lookup[l] = (length << 8) | symbol;
+					}
+				}
+			}
+			this.maxCode[length] = count == 0 ? -1 : code - 1;
+			code <<= 1;
 		}
-	}
+		this.maxCode[17] = Integer.MAX_VALUE; // sentinel
 
-	public int getSymbol(int index) {
-		return tree[index];
+		// short AC codes whose magnitude bits also fit in the lookahead
+		for (int i = 0; i < this.lookup.length; i++) {
+			if (this.lookup[i] == 0) {
+				continue;
+			}
+			int length = this.lookup[i] >> 8;
+			int run = (this.lookup[i] >> 4) & 0x0F;
+			int size = this.lookup[i] & 0x0F;
+			if (size == 0 || length + size > LOOKAHEAD_BITS) {
+				continue;
+			}
+			int coeff = (i >> (LOOKAHEAD_BITS - length - size)) & ((1 << size) - 1);
+			if (coeff < (1 << (size - 1))) {
+				coeff = coeff - (1 << size) + 1;
+			}
+			this.fastAC[i] = (coeff << 8) | (run << 4) | (length + size);
+		}
 	}
 }
 
@@ -638,7 +3154,9 @@ class Component {
 }
 
 class QuantizationTable {
-	int[] data;
+	int[] data; // natural order, also the islow multipliers
+	int[] ifastMultipliers;
+	float[] floatMultipliers;
 	int ID;
 
 	QuantizationTable(int ID) {
@@ -650,6 +3168,20 @@ class QuantizationTable {
 		return data;
 	}
 
+	// cache the IDCT multipliers once the table data is read
+	public void prescale() {
+		ifastMultipliers = IfastIDCTEngine.multipliers(data);
+		floatMultipliers = FloatIDCTEngine.multipliers(data);
+	}
+
+	public int[] getIfastMultipliers() {
+		return ifastMultipliers;
+	}
+
+	public float[] getFloatMultipliers() {
+		return floatMultipliers;
+	}
+
 	public int getID() {
 		return ID;
 	}
@@ -663,11 +3195,13 @@ class JPEGHeader {
 	int width;
 	int height;
 	List<Component> components;
-	List<Integer> data;
-	List<QuantizationTable> quantizationTable;
-	List<HuffmanTable> DCHuffmanTable;
-	List<HuffmanTable> ACHuffmanTable;
-	HashMap<Integer, Integer> index2ZigZagMap;
+	byte[] data; // entropy coded data of the current scan, still byte stuffed
+	int dataOffset;
+	int dataLength;
+	QuantizationTable[] quantizationTable; // by table ID
+	HuffmanTable[] DCHuffmanTable; // by table ID
+	HuffmanTable[] ACHuffmanTable;
+	int[] index2ZigZagMap; // zigzag order index -> natural order index
 
 	int verticalSamplingFactor = 1; // 4:4:4
 	int horizontalSamplingFactor = 1; // 4:4:4
@@ -676,346 +3210,1291 @@ class JPEGHeader {
 	boolean isVerticalMultipleBlock; // true: vertical is multiple of 8x8 block
 	boolean isHorizontalMultipleBlock; // true: horizontal multiple of 8x8 block
 
+	int restartInterval; // MCUs per restart interval, 0 if restart markers are not used
+
 	// progessive stuff
+	boolean progressive; // SOF2
+	List<Component> scanComponents; // components of the current scan in scan order
 	int startOfSpectralSelection;
 	int endOfSpectralSelection;
 	int succApprox;
 
-	JPEGHeader() {
-		this.quantizationTable = new ArrayList<QuantizationTable>();
-		this.DCHuffmanTable = new ArrayList<HuffmanTable>();
-		this.ACHuffmanTable = new ArrayList<HuffmanTable>();
-		this.data = new ArrayList<Integer>();
-		this.components = new ArrayList<Component>();
-		this.components.add(null); // since the component ID starts from 1 so padding index 0 with null
+	JPEGHeader() {
+		this.quantizationTable = new QuantizationTable[4];
+		this.DCHuffmanTable = new HuffmanTable[4];
+		this.ACHuffmanTable = new HuffmanTable[4];
+		this.dataOffset = 0;
+		this.dataLength = 0;
+		this.components = new ArrayList<Component>();
+		this.components.add(null); // since the component ID starts from 1 so padding index 0 with null
+		this.scanComponents = new ArrayList<Component>();
+
+		this.startOfSpectralSelection = 0;
+		this.endOfSpectralSelection = 0;
+		this.succApprox = 0;
+
+		this.index2ZigZagMap = new int[] {
+				0, 1, 8, 16, 9, 2, 3, 10,
+				17, 24, 32, 25, 18, 11, 4, 5,
+				12, 19, 26, 33, 40, 48, 41, 34,
+				27, 20, 13, 6, 7, 14, 21, 28,
+				35, 42, 49, 56, 57, 50, 43, 36,
+				29, 22, 15, 23, 30, 37, 44, 51,
+				58, 59, 52, 45, 38, 31, 39, 46,
+				53, 60, 61, 54, 47, 55, 62, 63 };
+	}
+
+	// forget the previous image, keeping the lists
+	public void reset() {
+		width = 0;
+		height = 0;
+		components.subList(1, components.size()).clear();
+		scanComponents.clear();
+		Arrays.fill(quantizationTable, null);
+		Arrays.fill(DCHuffmanTable, null);
+		Arrays.fill(ACHuffmanTable, null);
+		verticalSamplingFactor = 1;
+		horizontalSamplingFactor = 1;
+		restartInterval = 0;
+		progressive = false;
+		startOfSpectralSelection = 0;
+		endOfSpectralSelection = 0;
+		succApprox = 0;
+		data = null;
+		clearData();
+	}
+
+	public void setData(byte[] data, int offset, int length) {
+		this.data = data;
+		this.dataOffset = offset;
+		this.dataLength = length;
+	}
+
+	public void clearData(){
+		this.dataLength = 0;
+	}
+
+	public int getRestartInterval() {
+		return restartInterval;
+	}
+
+	public void setRestartInterval(int restartInterval) {
+		this.restartInterval = restartInterval;
+	}
+
+	public boolean isProgressive() {
+		return progressive;
+	}
+
+	public void setProgressive(boolean progressive) {
+		this.progressive = progressive;
+	}
+
+	public List<Component> getScanComponents() {
+		return scanComponents;
+	}
+
+	// the scan does not hold every component, or the image is progressive, so blocks are completed over
+	// several scans
+	public boolean isMultiScan() {
+		return progressive || scanComponents.size() < components.size() - 1;
+	}
+
+	public int getStartOfSpectralSelection() {
+		return startOfSpectralSelection;
+	}
+
+	public void setStartOfSpectralSelection(int startOfSpectralSelection) {
+		this.startOfSpectralSelection = startOfSpectralSelection;
+	}
+
+	public int getEndOfSpectralSelection() {
+		return endOfSpectralSelection;
+	}
+
+	public void setEndOfSpectralSelection(int endOfSpectralSelection) {
+		this.endOfSpectralSelection = endOfSpectralSelection;
+	}
+
+	public int getSuccApprox() {
+		return succApprox;
+	}
+
+	public void setSuccApprox(int succApprox) {
+		this.succApprox = succApprox;
+	}
+
+
+	public int[] getIndex2ZigZagMap() {
+		return index2ZigZagMap;
+	}
+
+	boolean getIsVerticalMultipleBlock() {
+		return isVerticalMultipleBlock;
+	}
+
+	boolean getIsHorizontalMultipleBlock() {
+		return isHorizontalMultipleBlock;
+	}
+
+	public void setHorizontalMultipleBlock(boolean isHorizontalMultipleBlock) {
+		this.isHorizontalMultipleBlock = isHorizontalMultipleBlock;
+	}
+
+	public void setVerticalMultipleBlock(boolean isVerticalMultipleBlock) {
+		this.isVerticalMultipleBlock = isVerticalMultipleBlock;
+	}
+
+	public int getVerticalBlockCount() {
+		return verticalBlockCount;
+	}
+
+	public int getHorizontalBlockCount() {
+		return horizontalBlockCount;
+	}
+
+	public int getVerticalSamplingFactor() {
+		return verticalSamplingFactor;
+	}
+
+	public int getHorizontalMCUCount() {
+		return (width + 8 * horizontalSamplingFactor - 1) / (8 * horizontalSamplingFactor);
+	}
+
+	public int getVerticalMCUCount() {
+		return (height + 8 * verticalSamplingFactor - 1) / (8 * verticalSamplingFactor);
+	}
+
+	public int getHorizontalSamplingFactor() {
+		return horizontalSamplingFactor;
+	}
+
+	public List<Component> getComponents() {
+		return components;
+	}
+
+	public QuantizationTable getQuantizationTableByID(int ID) {
+		return quantizationTable[ID];
+	}
+
+	public QuantizationTable[] getQuantizationTable() {
+		return quantizationTable;
+	}
+
+	public HuffmanTable[] getACHuffmanTable() {
+		return ACHuffmanTable;
+	}
+
+	public HuffmanTable[] getDCHuffmanTable() {
+		return DCHuffmanTable;
+	}
+
+	public byte[] getData() {
+		return data;
+	}
+
+	public int getDataOffset() {
+		return dataOffset;
+	}
+
+	public int getDataLength() {
+		return dataLength;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public void setHeight(int height) {
+		this.height = height;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public void setWidth(int width) {
+		this.width = width;
+	}
+}
+
+// a corrupt or unsupported image, thrown instead of exiting so that a batch goes on with the next one
+class JPEGException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	JPEGException(String message) {
+		super(message);
+	}
+
+	JPEGException(String message, Throwable cause) {
+		super(message + " (" + cause + ")", cause);
+	}
+}
+
+// a decoder with its header and input buffer, reused from image to image by one thread at a time
+class DecoderContext {
+	JPEGHeader header;
+	JPEGDecoder decoder;
+	ByteBuffer input;
+	ImageWriter writer; // keeps its buffer for the next image written in the same format
+	String writerFormat;
+
+	DecoderContext(DecoderOptions options) {
+		this.header = new JPEGHeader();
+		this.decoder = new JPEGDecoder(options);
+	}
+
+	public JPEGHeader getHeader() {
+		return header;
+	}
+
+	public JPEGDecoder getDecoder() {
+		return decoder;
+	}
+
+	// read a file and parse it up to its last scan, the size and channels of the output are then known
+	public void parse(String filename) throws IOException {
+		header.reset();
+		decoder.reset();
+		input = Main.readJPEG(filename, input);
+		Main.parseJPEGHeaderAndDecode(input, header, decoder);
+		decoder.computeRegion(header);
+		if (decoder.getOutputWidth() == 0 || decoder.getOutputHeight() == 0) {
+			throw new JPEGException(header.getWidth() == 0 ? "no image" : "crop region is outside the image");
+		}
+	}
+
+	// decode a file, the rows go to listener or, without one, to getDecoder().getPixels() which stays valid
+	// until the next decode
+	public JPEGDecoder decode(String filename, ScanlineListener listener) throws IOException {
+		parse(filename);
+		decoder.decodeRest(header, listener);
+		return decoder;
+	}
+
+	// decode a file into outputFilename as bmp, ppm or pam
+	public JPEGDecoder decode(String filename, String outputFilename, String format) throws IOException {
+		parse(filename);
+		return write(outputFilename, format);
+	}
+
+	// decode the rest of the parsed file into outputFilename as bmp, ppm or pam
+	public JPEGDecoder write(String outputFilename, String format) throws IOException {
+		try (FileChannel output = Main.openOutput(outputFilename)) {
+			if (writer == null || !format.equals(writerFormat)) {
+				writer = Main.newImageWriter(format, output);
+				writerFormat = format;
+			} else {
+				writer.setChannel(output);
+			}
+			decoder.decodeRest(header, writer);
+			return decoder;
+		}
+	}
+}
+
+// contexts for worker threads: acquire one per image (or per batch of images) and release it afterwards, so
+// that each worker keeps decoding into warm buffers
+class DecoderPool {
+	DecoderOptions options;
+	ConcurrentLinkedQueue<DecoderContext> contexts;
+
+	DecoderPool(DecoderOptions options) {
+		this.options = options;
+		this.contexts = new ConcurrentLinkedQueue<DecoderContext>();
+	}
+
+	public DecoderContext acquire() {
+		DecoderContext context = contexts.poll();
+		return context != null ? context : new DecoderContext(options);
+	}
+
+	public void release(DecoderContext context) {
+		contexts.offer(context);
+	}
+}
+
+// always on totals of all the decoders in the JVM: images, bytes in, pixels out and the time spent in each
+// stage. Each decoder adds an image once its last row is out, the adders keep threads from contending
+final class DecoderCounters {
+	static final int PARSE = 0; // marker segments, without the scans decoded on the way
+	static final int ENTROPY = 1; // Huffman decoding of the scans
+	static final int IDCT = 2; // dequantization and IDCT
+	static final int FUSED = 3; // Huffman decoding and IDCT of the fused MCU row loop
+	static final int COLOR = 4; // YCbCr to RGB conversion
+	static final int WRITE = 5; // the rows given to the ScanlineListener
+	static final int STAGES = 6;
+	static final String[] STAGE_NAMES = { "parse", "entropy", "IDCT", "fused", "color", "write" };
+
+	private static final LongAdder decodes = new LongAdder();
+	private static final LongAdder bytesIn = new LongAdder();
+	private static final LongAdder pixelsOut = new LongAdder();
+	private static final LongAdder[] stageNanos = new LongAdder[STAGES];
+
+	static {
+		for (int i = 0; i < STAGES; i++) {
+			stageNanos[i] = new LongAdder();
+		}
+	}
+
+	private DecoderCounters() {
+	}
+
+	static void add(long inputBytes, long pixels, long[] nanos) {
+		decodes.increment();
+		bytesIn.add(inputBytes);
+		pixelsOut.add(pixels);
+		for (int i = 0; i < STAGES; i++) {
+			if (nanos[i] != 0) {
+				stageNanos[i].add(nanos[i]);
+			}
+		}
+	}
+
+	public static long getDecodes() {
+		return decodes.sum();
+	}
+
+	public static long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+	public static long getPixelsOut() {
+		return pixelsOut.sum();
+	}
+
+	public static long getStageNanos(int stage) {
+		return stageNanos[stage].sum();
+	}
+
+	public static void reset() {
+		decodes.reset();
+		bytesIn.reset();
+		pixelsOut.reset();
+		for (LongAdder adder : stageNanos) {
+			adder.reset();
+		}
+	}
+
+	// average time per image of the stages that ran, e.g. "parse 0.1 ms, fused 9.8 ms, color 2.0 ms"
+	public static String stageAverages() {
+		long count = Math.max(1, getDecodes());
+		StringBuilder averages = new StringBuilder();
+		for (int i = 0; i < STAGES; i++) {
+			long nanos = getStageNanos(i);
+			if (nanos != 0) {
+				averages.append(averages.length() == 0 ? "" : ", ").append(STAGE_NAMES[i])
+						.append(String.format(Locale.ROOT, " %.2f ms", nanos / 1e6 / count));
+			}
+		}
+		return averages.toString();
+	}
+}
+
+// a decoding stage of one image in a JFR recording. The fused stage covers the whole MCU row loop, its
+// color conversion and writing are only split out in DecodeEvent and DecoderCounters
+@Name("jpeg.DecodeStage")
+@Label("JPEG Decode Stage")
+@Category("JPEG")
+@StackTrace(false)
+class DecodeStageEvent extends Event {
+	@Label("Stage")
+	String stage;
+
+	@Label("Width")
+	int width;
+
+	@Label("Height")
+	int height;
+
+	@Label("Sampling Factors")
+	String sampling;
+
+	@Label("Bytes")
+	@Description("The file for parse, the entropy coded data for entropy, the output pixels for the other stages")
+	@DataAmount
+	long bytes;
+
+	@Label("MCUs")
+	long mcuCount;
+
+	static final EventType TYPE = EventType.getEventType(DecodeStageEvent.class);
+
+	// a begun event, or null without allocating when no recording has the event enabled
+	static DecodeStageEvent start() {
+		if (!TYPE.isEnabled()) {
+			return null;
+		}
+		DecodeStageEvent event = new DecodeStageEvent();
+		event.begin();
+		return event;
+	}
+}
+
+// a decoded image in a JFR recording, from its parsing to its last row, with the time of each stage
+@Name("jpeg.Decode")
+@Label("JPEG Decode")
+@Category("JPEG")
+@StackTrace(false)
+class DecodeEvent extends Event {
+	@Label("Width")
+	int width;
+
+	@Label("Height")
+	int height;
+
+	@Label("Output Width")
+	int outputWidth;
+
+	@Label("Output Height")
+	int outputHeight;
+
+	@Label("Sampling Factors")
+	String sampling;
 
-		this.startOfSpectralSelection = 0;
-		this.endOfSpectralSelection = 0;
-		this.succApprox = 0;
+	@Label("Progressive")
+	boolean progressive;
 
-		this.index2ZigZagMap = new HashMap<Integer, Integer>();
-		this.index2ZigZagMap.put(0, 0);
-		this.index2ZigZagMap.put(1, 1);
-		this.index2ZigZagMap.put(2, 8);
-		this.index2ZigZagMap.put(3, 16);
-		this.index2ZigZagMap.put(4, 9);
-		this.index2ZigZagMap.put(5, 2);
-		this.index2ZigZagMap.put(6, 3);
-		this.index2ZigZagMap.put(7, 10);
-		this.index2ZigZagMap.put(8, 17);
-		this.index2ZigZagMap.put(9, 24);
-		this.index2ZigZagMap.put(10, 32);
-		this.index2ZigZagMap.put(11, 25);
-		this.index2ZigZagMap.put(12, 18);
-		this.index2ZigZagMap.put(13, 11);
-		this.index2ZigZagMap.put(14, 4);
-		this.index2ZigZagMap.put(15, 5);
-		this.index2ZigZagMap.put(16, 12);
-		this.index2ZigZagMap.put(17, 19);
-		this.index2ZigZagMap.put(18, 26);
-		this.index2ZigZagMap.put(19, 33);
-		this.index2ZigZagMap.put(20, 40);
-		this.index2ZigZagMap.put(21, 48);
-		this.index2ZigZagMap.put(22, 41);
-		this.index2ZigZagMap.put(23, 34);
-		this.index2ZigZagMap.put(24, 27);
-		this.index2ZigZagMap.put(25, 20);
-		this.index2ZigZagMap.put(26, 13);
-		this.index2ZigZagMap.put(27, 6);
-		this.index2ZigZagMap.put(28, 7);
-		this.index2ZigZagMap.put(29, 14);
-		this.index2ZigZagMap.put(30, 21);
-		this.index2ZigZagMap.put(31, 28);
-		this.index2ZigZagMap.put(32, 35);
-		this.index2ZigZagMap.put(33, 42);
-		this.index2ZigZagMap.put(34, 49);
-		this.index2ZigZagMap.put(35, 56);
-		this.index2ZigZagMap.put(36, 57);
-		this.index2ZigZagMap.put(37, 50);
-		this.index2ZigZagMap.put(38, 43);
-		this.index2ZigZagMap.put(39, 36);
-		this.index2ZigZagMap.put(40, 29);
-		this.index2ZigZagMap.put(41, 22);
-		this.index2ZigZagMap.put(42, 15);
-		this.index2ZigZagMap.put(43, 23);
-		this.index2ZigZagMap.put(44, 30);
-		this.index2ZigZagMap.put(45, 37);
-		this.index2ZigZagMap.put(46, 44);
-		this.index2ZigZagMap.put(47, 51);
-		this.index2ZigZagMap.put(48, 58);
-		this.index2ZigZagMap.put(49, 59);
-		this.index2ZigZagMap.put(50, 52);
-		this.index2ZigZagMap.put(51, 45);
-		this.index2ZigZagMap.put(52, 38);
-		this.index2ZigZagMap.put(53, 31);
-		this.index2ZigZagMap.put(54, 39);
-		this.index2ZigZagMap.put(55, 46);
-		this.index2ZigZagMap.put(56, 53);
-		this.index2ZigZagMap.put(57, 60);
-		this.index2ZigZagMap.put(58, 61);
-		this.index2ZigZagMap.put(59, 54);
-		this.index2ZigZagMap.put(60, 47);
-		this.index2ZigZagMap.put(61, 55);
-		this.index2ZigZagMap.put(62, 62);
-		this.index2ZigZagMap.put(63, 63);
-	}
-
-	public void pushData(int data){
-		this.data.add(data);
-	}
+	@Label("Input Bytes")
+	@DataAmount
+	long inputBytes;
 
-	public void clearData(){
-		this.data.clear();
-	}
+	@Label("MCUs")
+	long mcuCount;
 
-	public int getStartOfSpectralSelection() {
-		return startOfSpectralSelection;
-	}
+	@Label("Parse")
+	@Timespan
+	long parseTime;
 
-	public void setStartOfSpectralSelection(int startOfSpectralSelection) {
-		this.startOfSpectralSelection = startOfSpectralSelection;
-	}
+	@Label("Entropy Decoding")
+	@Timespan
+	long entropyTime;
 
-	public int getEndOfSpectralSelection() {
-		return endOfSpectralSelection;
-	}
+	@Label("IDCT")
+	@Timespan
+	long IDCTTime;
 
-	public void setEndOfSpectralSelection(int endOfSpectralSelection) {
-		this.endOfSpectralSelection = endOfSpectralSelection;
-	}
+	@Label("Fused Entropy Decoding and IDCT")
+	@Timespan
+	long fusedTime;
 
-	public int getSuccApprox() {
-		return succApprox;
-	}
+	@Label("Color Conversion")
+	@Timespan
+	long colorTime;
 
-	public void setSuccApprox(int succApprox) {
-		this.succApprox = succApprox;
-	}
+	@Label("Write")
+	@Timespan
+	long writeTime;
 
+	@Label("Warnings")
+	String warnings;
 
-	public HashMap<Integer, Integer> getIndex2ZigZagMap() {
-		return index2ZigZagMap;
+	static final EventType TYPE = EventType.getEventType(DecodeEvent.class);
+
+	// a begun event, or null without allocating when no recording has the event enabled
+	static DecodeEvent start() {
+		if (!TYPE.isEnabled()) {
+			return null;
+		}
+		DecodeEvent event = new DecodeEvent();
+		event.begin();
+		return event;
 	}
 
-	boolean getIsVerticalMultipleBlock() {
-		return isVerticalMultipleBlock;
+	// "2x2 1x1 1x1", the horizontal and vertical factors of each component
+	static String sampling(JPEGHeader header) {
+		StringBuilder sampling = new StringBuilder();
+		for (int k = 1; k < header.getComponents().size(); k++) {
+			Component component = header.getComponents().get(k);
+			sampling.append(k == 1 ? "" : " ").append(component.getHorizontalSamplingFactor()).append('x')
+					.append(component.getVerticalSamplingFactor());
+		}
+		return sampling.toString();
 	}
+}
 
-	boolean getIsHorizontalMultipleBlock() {
-		return isHorizontalMultipleBlock;
+// what a JPEG file declares before its first scan, as returned by Main.probe
+final class JPEGInfo {
+	private final int width;
+	private final int height;
+	private final int[] horizontalSamplingFactors; // per component in frame order
+	private final int[] verticalSamplingFactors;
+	private final boolean progressive;
+	private final int restartInterval;
+
+	JPEGInfo(JPEGHeader header) {
+		List<Component> components = header.getComponents();
+		this.width = header.getWidth();
+		this.height = header.getHeight();
+		this.horizontalSamplingFactors = new int[components.size() - 1];
+		this.verticalSamplingFactors = new int[components.size() - 1];
+		for (int k = 1; k < components.size(); k++) {
+			horizontalSamplingFactors[k - 1] = components.get(k).getHorizontalSamplingFactor();
+			verticalSamplingFactors[k - 1] = components.get(k).getVerticalSamplingFactor();
+		}
+		this.progressive = header.isProgressive();
+		this.restartInterval = header.getRestartInterval();
 	}
 
-	public void setHorizontalMultipleBlock(boolean isHorizontalMultipleBlock) {
-		this.isHorizontalMultipleBlock = isHorizontalMultipleBlock;
+	public int getWidth() {
+		return width;
 	}
 
-	public void setVerticalMultipleBlock(boolean isVerticalMultipleBlock) {
-		this.isVerticalMultipleBlock = isVerticalMultipleBlock;
+	public int getHeight() {
+		return height;
 	}
 
-	public int getVerticalBlockCount() {
-		return verticalBlockCount;
+	public int getComponentCount() {
+		return horizontalSamplingFactors.length;
 	}
 
-	public int getHorizontalBlockCount() {
-		return horizontalBlockCount;
+	// i counts components from 0 in frame order
+	public int getHorizontalSamplingFactor(int i) {
+		return horizontalSamplingFactors[i];
 	}
 
-	public int getVerticalSamplingFactor() {
-		return verticalSamplingFactor;
+	public int getVerticalSamplingFactor(int i) {
+		return verticalSamplingFactors[i];
 	}
 
-	public int getHorizontalSamplingFactor() {
-		return horizontalSamplingFactor;
+	public boolean isProgressive() {
+		return progressive;
 	}
 
-	public List<Component> getComponents() {
-		return components;
+	public int getRestartInterval() {
+		return restartInterval;
 	}
 
-	public QuantizationTable getQuantizationTableByID(int ID) {
-		return quantizationTable.get(ID);
+	@Override
+	public String toString() {
+		StringBuilder sampling = new StringBuilder();
+		for (int i = 0; i < getComponentCount(); i++) {
+			sampling.append(i == 0 ? "" : " ").append(horizontalSamplingFactors[i]).append('x')
+					.append(verticalSamplingFactors[i]);
+		}
+		return width + "x" + height + ", " + getComponentCount() + " components (" + sampling + "), "
+				+ (progressive ? "progressive" : "baseline") + ", restart interval " + restartInterval;
 	}
+}
 
-	public List<QuantizationTable> getQuantizationTable() {
-		return quantizationTable;
+// decodes many files in one JVM, at most concurrency at a time, each with a DecoderContext from a pool, and
+// reports the throughput and the per image latencies. A failing image is reported and the others go on, a slow
+// one only keeps its own slot
+class BatchDecoder {
+	DecoderPool pool;
+	String format;
+	int concurrency;
+	boolean virtualThreads; // set by run when the JVM has them
+
+	BatchDecoder(DecoderOptions options, String format, int concurrency) {
+		this.pool = new DecoderPool(options);
+		this.format = format;
+		this.concurrency = concurrency;
 	}
 
-	public List<HuffmanTable> getACHuffmanTable() {
-		return ACHuffmanTable;
+	// directories give the .jpg and .jpeg files in them, arguments with *, ?, [ or { are glob patterns and
+	// @name reads one argument per line of the file name, other arguments are file names
+	public static List<String> expand(List<String> arguments) throws IOException {
+		List<String> filenames = new ArrayList<String>();
+		for (String argument : arguments) {
+			if (argument.startsWith("@")) {
+				List<String> lines = new ArrayList<String>();
+				for (String line : Files.readAllLines(Paths.get(argument.substring(1)), StandardCharsets.UTF_8)) {
+					if (!line.trim().isEmpty() && !line.trim().startsWith("#")) {
+						lines.add(line.trim());
+					}
+				}
+				filenames.addAll(expand(lines));
+			} else if (Files.isDirectory(Paths.get(argument))) {
+				List<String> files = new ArrayList<String>();
+				try (DirectoryStream<Path> directory = Files.newDirectoryStream(Paths.get(argument))) {
+					for (Path path : directory) {
+						String name = path.getFileName().toString().toLowerCase(Locale.ROOT);
+						if ((name.endsWith(".jpg") || name.endsWith(".jpeg")) && Files.isRegularFile(path)) {
+							files.add(path.toString());
+						}
+					}
+				}
+				Collections.sort(files);
+				filenames.addAll(files);
+			} else if (argument.matches(".*[*?\\[{].*")) {
+				filenames.addAll(glob(argument));
+			} else {
+				filenames.add(argument);
+			}
+		}
+		return filenames;
 	}
 
-	public List<HuffmanTable> getDCHuffmanTable() {
-		return DCHuffmanTable;
+	// files matching pattern, searched from the directory part before the first wildcard
+	static List<String> glob(String pattern) throws IOException {
+		int wildcard = pattern.split("[*?\\[{]", 2)[0].length();
+		int separator = pattern.lastIndexOf('/', wildcard);
+		Path base = Paths.get(separator == -1 ? "" : pattern.substring(0, separator + 1));
+		// * stays in one directory, only ** goes down the tree
+		int depth = pattern.contains("**") ? Integer.MAX_VALUE
+				: pattern.substring(separator + 1).split("/", -1).length;
+		PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+		List<String> files = new ArrayList<String>();
+		if (!Files.isDirectory(base)) {
+			return files;
+		}
+		try (Stream<Path> paths = Files.walk(base, depth)) {
+			paths.filter(path -> matcher.matches(path) && Files.isRegularFile(path))
+					.forEach(path -> files.add(path.toString()));
+		}
+		Collections.sort(files);
+		return files;
 	}
 
-	public List<Integer> getData() {
-		return data;
+	// one virtual thread per image where the JVM has them (21 and later), a fixed pool otherwise
+	ExecutorService newExecutor() {
+		try {
+			ExecutorService executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+					.invoke(null);
+			virtualThreads = true;
+			return executor;
+		} catch (ReflectiveOperationException e) {
+			return Executors.newFixedThreadPool(concurrency);
+		}
 	}
 
-	public int getHeight() {
-		return height;
+	// decode every file next to itself, true when none failed
+	public boolean run(List<String> filenames) {
+		int count = filenames.size();
+		long[] latencies = new long[count]; // nanoseconds, -1 for a failed image
+		long[] inputBytes = new long[count];
+		long[] pixels = new long[count];
+		Semaphore slots = new Semaphore(concurrency);
+		ExecutorService executor = newExecutor();
+		DecoderCounters.reset();
+		long start = System.nanoTime();
+		try {
+			for (int i = 0; i < count; i++) {
+				int index = i;
+				slots.acquireUninterruptibly();
+				executor.execute(() -> {
+					try {
+						decode(filenames.get(index), index, latencies, inputBytes, pixels);
+					} finally {
+						slots.release();
+					}
+				});
+			}
+		} finally {
+			executor.shutdown();
+		}
+		try {
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		report(System.nanoTime() - start, latencies, inputBytes, pixels);
+		for (long latency : latencies) {
+			if (latency < 0) {
+				return false;
+			}
+		}
+		return true;
 	}
 
-	public void setHeight(int height) {
-		this.height = height;
+	void decode(String filename, int index, long[] latencies, long[] inputBytes, long[] pixels) {
+		int dotIndex = filename.lastIndexOf('.');
+		String basename = dotIndex == -1 ? filename : filename.substring(0, dotIndex);
+		String outputFilename = null; // named once the file is parsed, gray images may change the extension
+		DecoderContext context = pool.acquire();
+		long start = System.nanoTime();
+		boolean decoded = false;
+		try {
+			context.parse(filename);
+			outputFilename = Main.outputFilename(basename, format, context.getDecoder().getOutputChannels());
+			JPEGDecoder decoder = context.write(outputFilename, format);
+			latencies[index] = System.nanoTime() - start;
+			inputBytes[index] = context.input.limit();
+			pixels[index] = (long) decoder.getOutputWidth() * decoder.getOutputHeight();
+			decoded = true;
+			for (String warning : decoder.getWarnings()) {
+				System.out.println(filename + ": " + warning);
+			}
+			System.out.println("save to " + outputFilename);
+		} catch (IOException | RuntimeException e) {
+			System.out.println(filename + ": " + (e instanceof IOException ? e.toString() : e.getMessage()));
+		} catch (Error e) {
+			// e.g. OutOfMemoryError, the worker goes down with it but the image is counted as failed
+			System.out.println(filename + ": " + e);
+			throw e;
+		} finally {
+			if (decoded) {
+				pool.release(context);
+			} else {
+				// the buffers of a failed decode may be in any state, the context is dropped, and the output is
+				// cut short
+				latencies[index] = -1;
+				try {
+					if (outputFilename != null) {
+						Files.deleteIfExists(Paths.get(outputFilename));
+					}
+				} catch (IOException e) {
+					System.out.println(outputFilename + ": " + e);
+				}
+			}
+		}
 	}
 
-	public int getWidth() {
-		return width;
+	void report(long elapsed, long[] latencies, long[] inputBytes, long[] pixels) {
+		long[] decoded = new long[latencies.length];
+		int count = 0;
+		long totalBytes = 0;
+		long totalPixels = 0;
+		for (int i = 0; i < latencies.length; i++) {
+			if (latencies[i] >= 0) {
+				decoded[count++] = latencies[i];
+				totalBytes += inputBytes[i];
+				totalPixels += pixels[i];
+			}
+		}
+		decoded = Arrays.copyOf(decoded, count);
+		Arrays.sort(decoded);
+		double seconds = elapsed / 1e9;
+		System.out.println(String.format(Locale.ROOT, "%d images decoded, %d failed, in %.3f s, %d at a time on %s",
+				count, latencies.length - count, seconds, concurrency,
+				virtualThreads ? "virtual threads" : "platform threads"));
+		if (count == 0) {
+			return;
+		}
+		System.out.println(String.format(Locale.ROOT, "%.1f images/s, %.1f MB/s, %.1f megapixels/s", count / seconds,
+				totalBytes / 1e6 / seconds, totalPixels / 1e6 / seconds));
+		System.out.println(String.format(Locale.ROOT, "latency p50 %.1f ms, p95 %.1f ms, p99 %.1f ms, max %.1f ms",
+				percentile(decoded, 50) / 1e6, percentile(decoded, 95) / 1e6, percentile(decoded, 99) / 1e6,
+				decoded[count - 1] / 1e6));
+		System.out.println("per image: " + DecoderCounters.stageAverages());
 	}
 
-	public void setWidth(int width) {
-		this.width = width;
+	// nearest rank percentile of sorted values
+	static long percentile(long[] sorted, int p) {
+		int rank = (int) Math.ceil(p / 100.0 * sorted.length);
+		return sorted[Math.max(0, rank - 1)];
 	}
 }
 
 class Main {
+	static final int ALLOCATION_BUDGET = 64 * 1024; // bytes per decode with a reused DecoderContext
+
 	public static void main(String[] args) {
-		if (args.length != 1) {
+		DecoderOptions options = new DecoderOptions();
+		List<String> jpegImageFilenames = new ArrayList<String>();
+		String format = "bmp";
+		int previewScaleDenominator = 0;
+		boolean probe = false;
+		int allocationCheckRuns = 0;
+		boolean cropCheck = false;
+		boolean batch = false;
+		boolean threadsSet = false;
+		int concurrency = Runtime.getRuntime().availableProcessors();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-threads") && i + 1 < args.length) {
+				options.setParallelism(Integer.parseInt(args[++i]));
+				threadsSet = true;
+			} else if (args[i].equals("-batch")) {
+				batch = true;
+			} else if (args[i].equals("-concurrency") && i + 1 < args.length && args[i + 1].matches("\\d+")) {
+				concurrency = Math.max(1, Integer.parseInt(args[++i]));
+			} else if (args[i].equals("-scale") && i + 1 < args.length && args[i + 1].matches("1/[1248]")) {
+				options.setScaleDenominator(args[++i].charAt(2) - '0');
+			} else if (args[i].equals("-crop") && i + 1 < args.length && args[i + 1].matches("\\d+,\\d+,\\d+,\\d+")) {
+				String[] crop = args[++i].split(",");
+				options.setCrop(Integer.parseInt(crop[0]), Integer.parseInt(crop[1]), Integer.parseInt(crop[2]),
+						Integer.parseInt(crop[3]));
+			} else if (args[i].equals("-format") && i + 1 < args.length && args[i + 1].matches("bmp|ppm|pam")) {
+				format = args[++i];
+			} else if (args[i].equals("-preview") && i + 1 < args.length && args[i + 1].matches("1/[1248]")) {
+				previewScaleDenominator = args[++i].charAt(2) - '0';
+			} else if (args[i].equals("-probe")) {
+				probe = true;
+			} else if (args[i].equals("-alloccheck") && i + 1 < args.length && args[i + 1].matches("\\d+")) {
+				allocationCheckRuns = Math.max(2, Integer.parseInt(args[++i]));
+			} else if (args[i].equals("-cropcheck")) {
+				cropCheck = true;
+			} else if (args[i].equals("-staged")) {
+				options.setFused(false);
+			} else if (args[i].equals("-vector")) {
+				options.setVectorized(true);
+				if (!options.isVectorized()) {
+					System.out.println("Vector API not available, decoding with scalar code");
+				}
+			} else if (args[i].equals("-expandgray")) {
+				options.setExpandGray(true);
+			} else if (args[i].equals("-upsample") && i + 1 < args.length && args[i + 1].matches("fast|fancy")) {
+				options.setFancyUpsampling(args[++i].equals("fancy"));
+			} else if (args[i].equals("-idct") && i + 1 < args.length && IDCTEngine.byName(args[i + 1]) != null) {
+				options.setIDCTEngine(IDCTEngine.byName(args[++i]));
+			} else if (!args[i].startsWith("-")) {
+				jpegImageFilenames.add(args[i]);
+			} else {
+				usage();
+				System.exit(1);
+			}
+		}
+		if (options.isVectorized() && !(options.getIDCTEngine() instanceof IslowIDCTEngine)) {
+			System.out.println("-vector only has an islow IDCT");
+			System.exit(1);
+		}
+		if (batch) {
+			if (jpegImageFilenames.isEmpty() || probe || previewScaleDenominator != 0 || allocationCheckRuns > 0
+					|| cropCheck) {
+				usage();
+				System.exit(1);
+			}
+			options.setRGB(!format.equals("bmp"));
+			if (!threadsSet) {
+				options.setParallelism(1); // the images are decoded in parallel instead
+			}
+			try {
+				List<String> filenames = BatchDecoder.expand(jpegImageFilenames);
+				if (filenames.isEmpty()) {
+					System.out.println("no JPEG files found");
+					System.exit(1);
+				}
+				System.exit(new BatchDecoder(options, format, concurrency).run(filenames) ? 0 : 1);
+			} catch (IOException e) {
+				System.out.println(e.getMessage());
+				System.exit(1);
+			}
+		}
+		if (jpegImageFilenames.size() != 1) {
 			usage();
 			System.exit(1);
 		}
+		String jpegImageFilename = jpegImageFilenames.get(0);
+		if (allocationCheckRuns > 0) {
+			System.exit(checkAllocations(options, jpegImageFilename, allocationCheckRuns) ? 0 : 1);
+		}
+		if (cropCheck) {
+			if (!options.hasCrop()) {
+				usage();
+				System.exit(1);
+			}
+			System.exit(checkCrop(options, jpegImageFilename) ? 0 : 1);
+		}
+		if (probe) {
+			try {
+				System.out.println(jpegImageFilename + ": " + probe(jpegImageFilename));
+			} catch (IOException | JPEGException e) {
+				System.out.println(jpegImageFilename + ": " + e.getMessage());
+				System.exit(1);
+			}
+			return;
+		}
 
-		String jpegImageFilename = args[0];
+		// PPM and PAM store R, G, B
+		options.setRGB(!format.equals("bmp"));
+		int dotIndex = jpegImageFilename.lastIndexOf('.');
+		String basename = (dotIndex == -1) ? jpegImageFilename : jpegImageFilename.substring(0, dotIndex);
+		String outputFormat = format;
+		int previewDenominator = previewScaleDenominator;
 		JPEGHeader jpegHeader = new JPEGHeader();
-		JPEGDecoder jpegDecoder = new JPEGDecoder();
+		JPEGDecoder jpegDecoder = new JPEGDecoder(options);
 		try {
-			File jpegImage = new File(jpegImageFilename);
-			InputStream jpegByteStream = new FileInputStream(jpegImage);
-
-			parseJPEGHeaderAndDecode(jpegByteStream, jpegHeader, jpegDecoder);
-			jpegByteStream.close();
-			// System.exit(0);
-
-			// once decode for baseline mode, and last decode for progessive mode
-			jpegDecoder.decode(jpegHeader); 
+			ByteBuffer jpegBuffer = readJPEG(jpegImageFilename);
+			if (previewDenominator != 0) {
+				// scans before the last one are decoded while parsing, the last one gives the image itself
+				jpegDecoder.setScanListener((decoder, header, scan) -> savePreview(decoder, header, previewDenominator,
+						outputFilename(basename + "-scan" + scan, outputFormat, decoder.getOutputChannels()), outputFormat));
+			}
+			parseJPEGHeaderAndDecode(jpegBuffer, jpegHeader, jpegDecoder);
+			jpegDecoder.setScanListener(null);
 
-			jpegDecoder.dequantize(jpegHeader);
-			jpegDecoder.IDCT(jpegHeader);
-			jpegDecoder.YCbCr2RGB(jpegHeader);
-			saveBMP(jpegImageFilename, jpegHeader, jpegDecoder.getBlocks());
+			jpegDecoder.computeRegion(jpegHeader);
+			if (jpegDecoder.getOutputWidth() == 0 || jpegDecoder.getOutputHeight() == 0) {
+				System.out.println("crop region is outside the image");
+				System.exit(1);
+			}
+			String outputFilename = outputFilename(basename, format, jpegDecoder.getOutputChannels());
+			try (FileChannel output = openOutput(outputFilename)) {
+				// single scan images are written as soon as each MCU row is decoded
+				jpegDecoder.decodeRest(jpegHeader, newImageWriter(format, output));
+			}
+			for (String warning : jpegDecoder.getWarnings()) {
+				System.out.println(jpegImageFilename + ": " + warning);
+			}
+			System.out.println("save to " + outputFilename);
+		} catch (JPEGException e) {
+			System.out.println(jpegImageFilename + ": " + e.getMessage());
+			System.exit(1);
 		} catch (Exception e) {
 			System.out.println("Some error occur");
 			e.printStackTrace();
 		}
 	}
 
+	// decode the image runs times with one DecoderContext on this thread and report what the decodes of the
+	// second half allocate, once buffers, tables and JIT compiled code are warm. Fails above ALLOCATION_BUDGET
+	// bytes per image
+	public static boolean checkAllocations(DecoderOptions options, String filename, int runs) {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+			System.out.println("allocation counters are not available on this JVM");
+			return false;
+		}
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+		long threadID = Thread.currentThread().getId();
+		options.setParallelism(1); // the counters only see this thread
+		DecoderContext context = new DecoderContext(options);
+		long perImage;
+		try {
+			for (int i = 0; i < runs / 2; i++) {
+				context.decode(filename, null);
+			}
+			long before = threads.getThreadAllocatedBytes(threadID);
+			for (int i = runs / 2; i < runs; i++) {
+				context.decode(filename, null);
+			}
+			perImage = (threads.getThreadAllocatedBytes(threadID) - before) / (runs - runs / 2);
+		} catch (IOException e) {
+			System.out.println(filename + ": " + e.getMessage());
+			return false;
+		}
+		long imageBytes = context.getDecoder().getPixels().length;
+		System.out.println(filename + ": " + perImage + " bytes allocated per decode once warmed up, the image is "
+				+ imageBytes + " bytes");
+		if (perImage > ALLOCATION_BUDGET) {
+			System.out.println("more than " + ALLOCATION_BUDGET + " bytes");
+			return false;
+		}
+		return true;
+	}
+
+	// decode the image whole and then only the crop of options, with the same options otherwise, and check that
+	// the crop is byte for byte the rectangle of the whole image it covers
+	public static boolean checkCrop(DecoderOptions options, String filename) {
+		DecoderOptions wholeOptions = options.copy();
+		wholeOptions.setCrop(0, 0, 0, 0);
+		JPEGDecoder whole;
+		JPEGDecoder crop;
+		try {
+			whole = new DecoderContext(wholeOptions).decode(filename, null);
+			crop = new DecoderContext(options).decode(filename, null);
+		} catch (IOException | JPEGException e) {
+			System.out.println(filename + ": " + e.getMessage());
+			return false;
+		}
+		int channels = crop.getOutputChannels();
+		int lineBytes = crop.getOutputWidth() * channels;
+		int wrongLines = 0;
+		int wrongBytes = 0;
+		for (int y = 0; y < crop.getOutputHeight(); y++) {
+			int cropOffset = y * lineBytes;
+			int wholeOffset = ((crop.getOutputY() + y) * whole.getOutputWidth() + crop.getOutputX()) * channels;
+			int wrong = 0;
+			for (int x = 0; x < lineBytes; x++) {
+				if (crop.getPixels()[cropOffset + x] != whole.getPixels()[wholeOffset + x]) {
+					wrong++;
+				}
+			}
+			if (wrong != 0) {
+				System.out.println(filename + ": line " + y + " of the crop has " + wrong + " bytes unlike the whole image");
+				wrongLines++;
+				wrongBytes += wrong;
+			}
+		}
+		System.out.println(filename + ": " + crop.getOutputWidth() + "x" + crop.getOutputHeight() + " crop at ("
+				+ crop.getOutputX() + ", " + crop.getOutputY() + ") " + (wrongLines == 0 ? "matches the whole image"
+						: "has " + wrongBytes + " bytes in " + wrongLines + " lines unlike the whole image"));
+		return wrongLines == 0;
+	}
+
+	public static FileChannel openOutput(String filename) throws IOException {
+		return FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+	}
+
+	// basename with the extension of format, or .pgm for the gray images written as ppm since they are PGM files
+	public static String outputFilename(String basename, String format, int channels) {
+		return basename + "." + (format.equals("ppm") && channels == 1 ? "pgm" : format);
+	}
+
+	public static ImageWriter newImageWriter(String format, WritableByteChannel channel) {
+		return format.equals("bmp") ? new BMPWriter(channel) : new PPMWriter(channel, format.equals("pam"));
+	}
+
+	// write the image as far as it is decoded at 1/scaleDenominator of the size
+	public static void savePreview(JPEGDecoder jpegDecoder, JPEGHeader jpegHeader, int scaleDenominator,
+			String filename, String format) {
+		try (FileChannel output = openOutput(filename)) {
+			jpegDecoder.preview(jpegHeader, scaleDenominator, newImageWriter(format, output));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		System.out.println("save to " + filename);
+	}
+
+	public static JPEGInfo probe(String filename) throws IOException {
+		try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+			return probe(channel);
+		}
+	}
+
+	// parse the markers up to the first SOS and stop there. Only the frame header and DRI are read, other
+	// segments such as tables and APPn thumbnails are skipped by their length, so a probe reads well below 1 KB
+	// of most files
+	public static JPEGInfo probe(SeekableByteChannel channel) throws IOException {
+		ByteBuffer marker = readFully(channel, 2);
+		if ((marker.get(0) & 0xFF) != 0xFF || (marker.get(1) & 0xFF) != 0xD8) {
+			throw new IOException("not a JPEG file");
+		}
+		JPEGHeader jpegHeader = new JPEGHeader();
+		boolean hasFrame = false;
+		while (true) {
+			marker = readFully(channel, 2);
+			if ((marker.get(0) & 0xFF) != 0xFF) {
+				throw new IOException("marker expected at " + (channel.position() - 2));
+			}
+			int code = marker.get(1) & 0xFF;
+			while (code == 0xFF) { // fill bytes
+				code = readFully(channel, 1).get(0) & 0xFF;
+			}
+			if (code == 0xDA || code == 0xD9) { // SOS or EOI
+				break;
+			}
+			if (code == 0x01 || (code >= 0xD0 && code <= 0xD7)) { // TEM and RSTn have no length
+				continue;
+			}
+			int length = readFully(channel, 2).getShort(0) & 0xFFFF;
+			if (length < 2) {
+				throw new IOException("invalid segment length " + length);
+			}
+			boolean isFrame = code >= 0xC0 && code <= 0xCF && code != 0xC4 && code != 0xC8 && code != 0xCC;
+			if (isFrame && !hasFrame) {
+				// parseSOF reads the length too
+				ByteBuffer segment = ByteBuffer.allocate(length);
+				segment.putShort((short) length);
+				segment.put(readFully(channel, length - 2));
+				segment.flip();
+				if (length < 8 || length < 8 + 3 * (segment.get(7) & 0xFF)) {
+					throw new IOException("truncated frame header");
+				}
+				parseSOF(segment, jpegHeader);
+				// SOF2, SOF6, SOF10 and SOF14
+				jpegHeader.setProgressive((code & 0x03) == 0x02);
+				hasFrame = true;
+			} else if (code == 0xDD && length >= 4) {
+				jpegHeader.setRestartInterval(readFully(channel, 2).getShort(0) & 0xFFFF);
+				channel.position(channel.position() + length - 4);
+			} else {
+				channel.position(channel.position() + length - 2);
+			}
+		}
+		if (!hasFrame) {
+			throw new IOException("no frame header before the first scan");
+		}
+		return new JPEGInfo(jpegHeader);
+	}
+
+	// the next n bytes of channel, flipped for reading
+	private static ByteBuffer readFully(ReadableByteChannel channel, int n) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(n);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) == -1) {
+				throw new EOFException("unexpected end of file");
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	// bulk read the whole file so that parsing and decoding never go back to the OS per byte
+	public static ByteBuffer readJPEG(String filename) throws IOException {
+		return readJPEG(filename, null);
+	}
+
+	// same, into buffer when it is large enough
+	public static ByteBuffer readJPEG(String filename, ByteBuffer buffer) throws IOException {
+		try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+			if (buffer == null || buffer.capacity() < channel.size()) {
+				buffer = ByteBuffer.allocate((int) channel.size());
+			}
+			buffer.clear().limit((int) channel.size());
+			while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+			}
+			buffer.flip();
+			return buffer;
+		}
+	}
+
 	public static boolean reachMarker(int byteData) {
 		return byteData == 0xFF;
 	}
 
-	public static int mergeTwoBytes(int byteData1, int byteData2) {
-		return (byteData1 << 8) | byteData2;
+	public static void usage() {
+		System.out.println("Usage: java Main [-threads n] [-staged] [-idct islow|ifast|float] [-upsample fast|fancy] [-vector] [-scale 1/n]"
+				+ " [-crop x,y,w,h] [-format bmp|ppm|pam] [-expandgray] [-preview 1/n] [-probe] [-alloccheck n] [-cropcheck]"
+				+ " jpeg_filename");
+		System.out.println("       java Main -batch [-concurrency n] [options] file|directory|glob|@list ...");
+		System.out.println("  -threads n  threads used by the decoding stages (default: number of CPUs)");
+		System.out.println("  -staged     run each decoding stage over the whole image instead of per MCU row");
+		System.out.println("  -idct m     inverse DCT: islow (accurate integer, default), ifast (fast integer) or float");
+		System.out.println("  -upsample m  subsampled chroma: fast (repeat samples, default) or fancy (interpolate like libjpeg)");
+		System.out.println("  -scale 1/n  decode at 1/2, 1/4 or 1/8 of the size with reduced inverse DCTs");
+		System.out.println("  -crop x,y,w,h  decode only the rectangle at (x, y) of w x h image pixels");
+		System.out.println("  -format f   output file: bmp (default), ppm (pgm for gray images) or pam");
+		System.out.println("  -expandgray  write gray images as 24 bit BMP, PPM or RGB PAM instead of 8 bit BMP, PGM or gray PAM");
+		System.out.println("  -preview 1/n  also write the image at 1/n of the size after each scan but the last");
+		System.out.println("  -probe      print the size and layout of the image without decoding it");
+		System.out.println("  -alloccheck n  decode n times with one reused decoder and check what each decode allocates");
+		System.out.println("  -cropcheck  decode the image whole and with -crop and check the crop matches the whole image");
+		System.out.println("  -batch      decode all the files given, in one JVM, and report the throughput and latencies");
+		System.out.println("  -concurrency n  images decoded at a time in batch mode (default: number of CPUs)");
+		System.out.println("  -vector     Vector API islow IDCT and color conversion (make vector, needs --add-modules jdk.incubator.vector)");
 	}
 
-	public static void usage() {
-		System.out.println("Usage: java Main jpeg_filename");
+	public static int readByte(ByteBuffer jpegBuffer) {
+		return jpegBuffer.get() & 0xFF;
+	}
+
+	public static int readMarkerSize(ByteBuffer jpegBuffer) {
+		return (jpegBuffer.getShort() & 0xFFFF) - 2;
+	}
+
+	// index of the marker ending the entropy coded data starting at from,
+	// stuffed 0xFF00 and RSTn are part of the data
+	public static int findScanEnd(byte[] data, int from, int end) {
+		int i = from;
+		while (i < end - 1) {
+			if (data[i] != (byte) 0xFF) {
+				i++;
+				continue;
+			}
+			int byteData = data[i + 1] & 0xFF;
+			if (byteData == 0xFF) { // fill byte before a marker
+				i++;
+				continue;
+			}
+			if (byteData != 0x00 && (byteData < 0xD0 || byteData > 0xD7)) {
+				return i;
+			}
+			i += 2;
+		}
+		return end;
 	}
 
-	public static void parseSOS(InputStream jpegByteStream, JPEGHeader jpegHeader) {
-		int byteData, byteData1, byteData2;
+	public static void parseSOS(ByteBuffer jpegBuffer, JPEGHeader jpegHeader) {
+		int byteData;
 		int markerSize;
 
 		try {
-			byteData1 = jpegByteStream.read();
-			byteData2 = jpegByteStream.read();
-			markerSize = mergeTwoBytes(byteData1, byteData2) - 2;
+			markerSize = readMarkerSize(jpegBuffer);
+			int segmentEnd = jpegBuffer.position() + markerSize;
 
-			int componentCount = jpegByteStream.read();
+			int componentCount = readByte(jpegBuffer);
+			jpegHeader.getScanComponents().clear();
 			for (int i = 0; i < componentCount; i++) {
-				int componentID = jpegByteStream.read();
-				byteData = jpegByteStream.read();
+				int componentID = readByte(jpegBuffer);
+				byteData = readByte(jpegBuffer);
 				int DCHuffmanTableID = (byteData & 0xF0) >> 4;
 				int ACHuffmanTableID = byteData & 0x0F;
 
 				jpegHeader.getComponents().get(componentID).setACHuffmanTableID(ACHuffmanTableID);
 				jpegHeader.getComponents().get(componentID).setDCHuffmanTableID(DCHuffmanTableID);
+				jpegHeader.getScanComponents().add(jpegHeader.getComponents().get(componentID));
 			}
-			markerSize -= (1 + componentCount * 2);
-			int startOfSpectralSelection = jpegByteStream.read();
+			int startOfSpectralSelection = readByte(jpegBuffer);
 			jpegHeader.setStartOfSpectralSelection(startOfSpectralSelection);
-			int endOfSpectralSelection = jpegByteStream.read();
+			int endOfSpectralSelection = readByte(jpegBuffer);
 			jpegHeader.setEndOfSpectralSelection(endOfSpectralSelection);
-			int succApprox = jpegByteStream.read();
+			int succApprox = readByte(jpegBuffer);
 			jpegHeader.setSuccApprox(succApprox);
+			jpegBuffer.position(segmentEnd);
+		} catch (Exception e) {
+			throw new JPEGException("Some error occur during parsing SOS", e);
+		}
+	}
+
+	public static void parseDHT(ByteBuffer jpegBuffer, JPEGHeader jpegHeader) {
+		int markerSize;
+
+		try {
+			markerSize = readMarkerSize(jpegBuffer);
 
-			// System.out.println("startOfSpectralSelection: " + startOfSpectralSelection);
-			// System.out.println("endOfSpectralSelection: " + endOfSpectralSelection);
-			// System.out.println("succApprox: " + succApprox);
+			while (markerSize > 0) {
+				int tableInfo = readByte(jpegBuffer);
+				markerSize--;
 
+				int isAC = tableInfo & 0x10;
+				int ID = tableInfo & 0x0F;
+				if (ID > 3) {
+					throw new JPEGException("invalid huffman table ID " + ID);
+				}
+				int symbolCount = 0;
+				for (int i = 0; i < 16; i++) {
+					symbolCount += jpegBuffer.get(jpegBuffer.position() + i) & 0xFF;
+				}
+				// code counts and symbols are the cache key
+				byte[] bytes = new byte[16 + symbolCount];
+				jpegBuffer.get(bytes);
+				markerSize -= bytes.length;
+
+				// indexed by ID, a table defined again between scans replaces the old one
+				HuffmanTable[] tables = (isAC == 0x10) ? jpegHeader.getACHuffmanTable() : jpegHeader.getDCHuffmanTable();
+				tables[ID] = HuffmanTable.of(bytes);
+			}
+		} catch (JPEGException e) {
+			throw e;
 		} catch (Exception e) {
-			e.printStackTrace();
-			System.out.println("Some error occur during parsing SOS");
-			System.exit(1);
+			throw new JPEGException("Some error occur when parsing DHT", e);
 		}
 	}
 
-	public static void parseDHT(InputStream jpegByteStream, JPEGHeader jpegHeader) {
-		int byteData, byteData1, byteData2;
+	public static void parseDQT(ByteBuffer jpegBuffer, JPEGHeader jpegHeader) {
+		int byteData;
 		int markerSize;
 
 		try {
-			byteData1 = jpegByteStream.read();
-			byteData2 = jpegByteStream.read();
-			markerSize = mergeTwoBytes(byteData1, byteData2) - 2;
+			markerSize = readMarkerSize(jpegBuffer);
 
 			while (markerSize > 0) {
-				int tableInfo = jpegByteStream.read();
+				byteData = readByte(jpegBuffer);
 				markerSize--;
 
-				int isAC = tableInfo & 0x10;
-				int ID = tableInfo & 0x01;
-				HuffmanTable huffmanTable = new HuffmanTable(ID);
-				HashMap<Integer, List<Integer>> bitSymbolTable = huffmanTable.getBitSymbolTable();
-				byte[] bytes = jpegByteStream.readNBytes(16);
-				markerSize -= 16;
+				int is16Bit = (byteData & 0xF0) >> 4;
+				int tableID = byteData & 0x0F;
+				if (tableID > 3) {
+					throw new JPEGException("invalid quantization table ID " + tableID);
+				}
+				QuantizationTable quantizationTable = new QuantizationTable(tableID);
 
-				for (int i = 0; i < 16; i++) {
-					int bitLength = (int) bytes[i];
-					if (bitLength == 0) {
-						continue;
+				if (is16Bit == 0x1) {
+					for (int i = 0; i < 64; i++) {
+						markerSize -= 2;
+						quantizationTable.getData()[jpegHeader.getIndex2ZigZagMap()[i]] = jpegBuffer.getShort() & 0xFFFF;
 					}
-
-					for (int j = 0; j < bitLength; j++) {
-						byteData = jpegByteStream.read();
-						bitSymbolTable.get(i + 1).add(byteData); // i + 1 simply starts from index 1
+				} else { // 8 bit
+					for (int i = 0; i < 64; i++) {
 						markerSize--;
+						quantizationTable.getData()[jpegHeader.getIndex2ZigZagMap()[i]] = readByte(jpegBuffer);
 					}
 				}
-
-				// TODO: can be build when building the bitSymbolTable
-				huffmanTable.buildTree();
-
-				if (isAC == 0x10) {
-					jpegHeader.getACHuffmanTable().add(huffmanTable);
-				} else {
-					jpegHeader.getDCHuffmanTable().add(huffmanTable);
-				}
+				quantizationTable.prescale();
+				// indexed by ID like the huffman tables, a table defined again replaces the old one
+				jpegHeader.getQuantizationTable()[tableID] = quantizationTable;
 			}
+		} catch (JPEGException e) {
+			throw e;
 		} catch (Exception e) {
-			e.printStackTrace();
-			System.out.println("Some error occur when parsing DHT");
-			System.exit(0);
+			throw new JPEGException("Some error occur when parsing DQT", e);
 		}
 	}
 
-	public static void parseSOF(InputStream jpegByteStream, JPEGHeader jpegHeader) {
-		int byteData, byteData1, byteData2;
+	public static void parseSOF(ByteBuffer jpegBuffer, JPEGHeader jpegHeader) {
+		int byteData;
 		int markerSize;
 		int height;
 		int width;
 		try {
-			byteData1 = jpegByteStream.read();
-			byteData2 = jpegByteStream.read();
-			markerSize = mergeTwoBytes(byteData1, byteData2) - 2;
-			jpegByteStream.read(); // precision
-			byteData1 = jpegByteStream.read();
-			byteData2 = jpegByteStream.read();
-			height = mergeTwoBytes(byteData1, byteData2);
-			byteData1 = jpegByteStream.read();
-			byteData2 = jpegByteStream.read();
-			width = mergeTwoBytes(byteData1, byteData2);
+			markerSize = readMarkerSize(jpegBuffer);
+			int segmentEnd = jpegBuffer.position() + markerSize;
+			readByte(jpegBuffer); // precision
+			height = jpegBuffer.getShort() & 0xFFFF;
+			width = jpegBuffer.getShort() & 0xFFFF;
 
 			jpegHeader.setHeight(height);
 			jpegHeader.setWidth(width);
@@ -1040,219 +4519,182 @@ class Main {
 				jpegHeader.setVerticalMultipleBlock(true);
 			}
 
-			int componentCount = jpegByteStream.read();
+			int componentCount = readByte(jpegBuffer);
 			for (int i = 0; i < componentCount; i++) {
 				Component component = new Component();
-				int componentID = jpegByteStream.read();
-				byteData = jpegByteStream.read();
+				int componentID = readByte(jpegBuffer);
+				byteData = readByte(jpegBuffer);
 				int horizontalSamplingFactor = (byteData & 0xF0) >> 4;
 				int verticalSamplingFactor = byteData & 0x0F;
-				int quantizeID = jpegByteStream.read();
+				int quantizeID = readByte(jpegBuffer);
+				// checked before the MCU size, the region or any upsampler is worked out from them
+				if (horizontalSamplingFactor < 1 || horizontalSamplingFactor > 4 || verticalSamplingFactor < 1
+						|| verticalSamplingFactor > 4) {
+					throw new JPEGException("invalid sampling factors " + horizontalSamplingFactor + "x"
+							+ verticalSamplingFactor + " of component " + componentID);
+				}
 
 				component.setID(componentID);
 				component.setHorizontalSamplingFactor(horizontalSamplingFactor);
 				component.setVerticalSamplingFactor(verticalSamplingFactor);
 				component.setQuantizedTableID(quantizeID);
 
-				if (componentID == 1) {
-					// the largest sampling factors since Luminance component cannot be subsamspling
-					jpegHeader.horizontalSamplingFactor = horizontalSamplingFactor;
-					jpegHeader.verticalSamplingFactor = verticalSamplingFactor;
-				}
+				// the MCU size comes from the largest sampling factors, which usually but not always are the luma ones
+				jpegHeader.horizontalSamplingFactor = Math.max(jpegHeader.horizontalSamplingFactor, horizontalSamplingFactor);
+				jpegHeader.verticalSamplingFactor = Math.max(jpegHeader.verticalSamplingFactor, verticalSamplingFactor);
 
 				jpegHeader.getComponents().add(component);
 			}
+
+			jpegBuffer.position(segmentEnd);
+		} catch (JPEGException e) {
+			throw e;
 		} catch (Exception e) {
-			e.printStackTrace();
-			System.out.println("Some error occur");
-			System.exit(1);
+			throw new JPEGException("Some error occur when parsing SOF", e);
 		}
 
 	}
 
-	public static void parseJPEGHeaderAndDecode(InputStream jpegByteStream, JPEGHeader jpegHeader, JPEGDecoder jpegDecoder) {
-		int byteData, byteData1, byteData2;
+	public static void parseJPEGHeaderAndDecode(ByteBuffer jpegBuffer, JPEGHeader jpegHeader, JPEGDecoder jpegDecoder) {
+		byte[] bytes = jpegBuffer.array();
+		int byteData;
 		int markerSize;
 
+		jpegDecoder.startParse(jpegBuffer.remaining());
 		try {
-			while (jpegByteStream.available() > 0) {
-				byteData = jpegByteStream.read();
-
-				if (!reachMarker(byteData))
-					continue;
+			while (jpegBuffer.remaining() >= 2) {
+				// bulk scan for the next marker
+				int markerIndex = jpegBuffer.arrayOffset() + jpegBuffer.position();
+				int end = jpegBuffer.arrayOffset() + jpegBuffer.limit();
+				while (markerIndex < end && !reachMarker(bytes[markerIndex] & 0xFF)) {
+					markerIndex++;
+				}
+				if (markerIndex >= end - 1) {
+					break;
+				}
+				jpegBuffer.position(markerIndex - jpegBuffer.arrayOffset() + 1);
 
-				byteData = jpegByteStream.read();
+				byteData = readByte(jpegBuffer);
 				switch (byteData) {
 					// SOI(Start of Image)
 					case 0xD8:
-						jpegByteStream.read();
 						break;
 
-					// APP0
-					case 0xE0:
-						byteData1 = jpegByteStream.read();
-						byteData2 = jpegByteStream.read();
-						markerSize = mergeTwoBytes(byteData1, byteData2) - 2;
-						jpegByteStream.readNBytes(markerSize);
+					// EOI(End of Image)
+					case 0xD9:
+						return;
+
+					// fill byte, the marker code follows
+					case 0xFF:
+						jpegBuffer.position(jpegBuffer.position() - 1);
+						break;
+
+					// RSTn and TEM carry no length, RSTn only appear inside entropy coded data
+					case 0x01:
+					case 0xD0:
+					case 0xD1:
+					case 0xD2:
+					case 0xD3:
+					case 0xD4:
+					case 0xD5:
+					case 0xD6:
+					case 0xD7:
+						break;
+
+					// DRI(Define Restart Interval)
+					case 0xDD:
+						markerSize = readMarkerSize(jpegBuffer);
+						jpegHeader.setRestartInterval(jpegBuffer.getShort() & 0xFFFF);
+						jpegBuffer.position(jpegBuffer.position() + markerSize - 2);
 						break;
 
 					// DQT(Define Quantization Table)
 					case 0xDB:
-						// marker size
-						byteData1 = jpegByteStream.read();
-						byteData2 = jpegByteStream.read();
-						markerSize = mergeTwoBytes(byteData1, byteData2) - 2;
-
-						while (markerSize > 0) {
-							byteData = jpegByteStream.read();
-							markerSize--;
-
-							int is16Bit = (byteData & 0xF0) >> 4;
-							int tableID = byteData & 0x0F;
-							QuantizationTable quantizationTable = new QuantizationTable(tableID);
-
-							if (is16Bit == 0x1) {
-								for (int i = 0; i < 64; i++) {
-									byteData1 = jpegByteStream.read();
-									byteData2 = jpegByteStream.read();
-									markerSize -= 2;
-
-									quantizationTable.getData()[jpegHeader.getIndex2ZigZagMap()
-											.get(i)] = (byteData1 << 8) | byteData2;
-								}
-							} else { // 8 bit
-								for (int i = 0; i < 64; i++) {
-									byteData = jpegByteStream.read();
-									markerSize--;
-
-									quantizationTable.getData()[jpegHeader.getIndex2ZigZagMap()
-											.get(i)] = byteData;
-								}
-							}
-							jpegHeader.getQuantizationTable().add(quantizationTable);
-						}
+						parseDQT(jpegBuffer, jpegHeader);
 						break;
 
 					// DHT(Define Huffman Table)
 					case 0xC4:
-						parseDHT(jpegByteStream, jpegHeader);
+						// tables of a pending scan must not be replaced before it is decoded
+						decodePendingScan(jpegHeader, jpegDecoder);
+						parseDHT(jpegBuffer, jpegHeader);
 						break;
 
 					// SOF(Start of Frame) baseline
 					case 0xC0:
-						parseSOF(jpegByteStream, jpegHeader);
+						parseSOF(jpegBuffer, jpegHeader);
 						break;
 
 					// SOF(Start of Frame) progessive
 					case 0xC2:
-						parseSOF(jpegByteStream, jpegHeader);
+						parseSOF(jpegBuffer, jpegHeader);
+						jpegHeader.setProgressive(true);
 						break;
 
 					// SOS(Start of Scan)
 					case 0xDA:
-						parseSOS(jpegByteStream, jpegHeader);
-
-						byteData1 = jpegByteStream.read();
-						while (jpegByteStream.available() > 0) {
-							byteData2 = byteData1;
-							byteData1 = jpegByteStream.read();
-							if (reachMarker(byteData2)) {
-								// EOI(End of Image)
-								if (byteData1 == 0xD9) {
-									break;
-								} else if (byteData1 == 0xFF) { // skip multiple consecutive 0xFF
-									continue;
-								} else if (byteData1 == 0xC4) { // DHT
-									parseDHT(jpegByteStream, jpegHeader);
-									jpegDecoder.decode(jpegHeader);
-									jpegHeader.clearData();
-								} else if (byteData1 == 0xDA) { // SOS again
-									parseSOS(jpegByteStream, jpegHeader);
-									parseDHT(jpegByteStream, jpegHeader);
-									jpegDecoder.decode(jpegHeader);
-									jpegHeader.clearData();
-								} else if (byteData1 == 0x00) { // ignore zero after 0xFF
-									jpegHeader.pushData(byteData2);
-									byteData1 = jpegByteStream.read();
-								} else {
-									System.out.println("SOS: invalid marker");
-								}
-							} else {
-								jpegHeader.pushData(byteData2);
-							}
+						decodePendingScan(jpegHeader, jpegDecoder);
+						parseSOS(jpegBuffer, jpegHeader);
+
+						// the entropy coded data is decoded in place, stuffing is removed by the bit reader
+						int scanStart = jpegBuffer.arrayOffset() + jpegBuffer.position();
+						int scanEnd = findScanEnd(bytes, scanStart, end);
+						jpegHeader.setData(bytes, scanStart, scanEnd - scanStart);
+						jpegBuffer.position(scanEnd - jpegBuffer.arrayOffset());
+						if (!jpegHeader.isMultiScan()) {
+							// the only scan of the image, nothing after it is needed
+							checkTail(bytes, scanEnd, end, jpegDecoder);
+							return;
 						}
 						break;
 
+					// APPn, COM and other segments carrying a length
 					default:
+						markerSize = readMarkerSize(jpegBuffer);
+						if (markerSize > jpegBuffer.remaining()) {
+							if (jpegHeader.getDataLength() == 0 && jpegDecoder.getScanCount() == 0) {
+								throw new JPEGException("file ends before the first scan");
+							}
+							// skipped segments do not change the image, a truncated one after a scan is not
+							// worth failing for
+							jpegDecoder.warn(String.format("segment 0x%02X runs past the end of the file", byteData));
+							return;
+						}
+						jpegBuffer.position(jpegBuffer.position() + markerSize);
 						break;
 				}
 			}
+			if (jpegHeader.getDataLength() > 0 || jpegDecoder.getScanCount() > 0) {
+				jpegDecoder.warn("no EOI marker, the scan data may be truncated");
+			}
+		} catch (JPEGException e) {
+			throw e;
 		} catch (Exception e) {
-			System.out.println("Some error occur");
-			e.printStackTrace();
+			throw new JPEGException("Some error occur", e);
+		} finally {
+			jpegDecoder.endParse(jpegHeader);
 		}
 	}
 
-	public static void saveBMP(String filename, JPEGHeader header, List<Block> blocks) {
-		int blockIndex = 0;
-		int prevBlockIndex = 0;
-		int bufIdx = 0;
-		BufferedImage bufferedImage = new BufferedImage(header.getWidth(), header.getHeight(),
-				BufferedImage.TYPE_3BYTE_BGR);
-		byte[] bufferedImageBytes = ((DataBufferByte) bufferedImage.getRaster().getDataBuffer()).getData();
-
-		int verticalBlockCountReal = header.getHeight() / 8;
-		int horizontalBlockCountReal = header.getWidth() / 8;
-		int horizontalPixelPadding = 0;
-
-		if (!header.getIsHorizontalMultipleBlock()) {
-			horizontalPixelPadding = header.getWidth() % 8;
-		}
-
-		for (int i = 0; i < verticalBlockCountReal; i++) {
-			for (int k = 0; k < 8; k++) { // row
-				blockIndex = prevBlockIndex;
-				for (int j = 0; j < horizontalBlockCountReal; j++) {
-					Block block = blocks.get(blockIndex);
-					int rgb_[][][] = block.getRgb();
-					for (int l = 0; l < 8; l++) { // col
-						for (int o = 2; o >= 0; o--) { // channel
-							bufferedImageBytes[bufIdx++] = (byte) rgb_[k][l][o];
-						}
-					}
-					blockIndex++;
-				}
-
-				// horizontal padding on each row
-				if (horizontalPixelPadding != 0) {
-					Block block = blocks.get(blockIndex);
-					int rgb_[][][] = block.getRgb();
-					for (int l = 0; l < horizontalPixelPadding; l++) { // col
-						for (int o = 2; o >= 0; o--) { // channel
-							bufferedImageBytes[bufIdx++] = (byte) rgb_[k][l][o];
-						}
-					}
-					blockIndex++;
-				}
+	// decode the previous scan of a multi-scan image, the last scan is decoded by the caller
+	public static void decodePendingScan(JPEGHeader jpegHeader, JPEGDecoder jpegDecoder) {
+		if (jpegHeader.getDataLength() > 0) {
+			try {
+				jpegDecoder.decode(jpegHeader);
+			} finally {
+				jpegHeader.clearData(); // not pending anymore, even when it failed
 			}
-			prevBlockIndex = blockIndex;
-		}
-
-		// vertical padding
-		int remainingPixelBytes = (header.getWidth() * header.getHeight() * 3) - bufIdx;
-		for (int i = 0; i < remainingPixelBytes; i++) {
-			bufferedImageBytes[bufIdx++] = (byte) 0x00;
 		}
+	}
 
-		try {
-			int dotIndex = filename.lastIndexOf('.');
-			String basename = (dotIndex == -1) ? filename : filename.substring(0, dotIndex);
-			File outputBMP = new File(basename + ".bmp");
-			ImageIO.write(bufferedImage, "bmp", outputBMP);
-			System.out.println("save to " + basename + ".bmp");
-		} catch (Exception e) {
-			System.out.println("Some error occur");
-			e.printStackTrace();
+	// what follows the scan of a single scan image should be EOI, anything else is ignored and reported.
+	// Without a marker the file ends inside the scan, whose missing data decodes as zeros
+	static void checkTail(byte[] bytes, int scanEnd, int end, JPEGDecoder jpegDecoder) {
+		if (scanEnd >= end - 1) {
+			jpegDecoder.warn("no EOI marker, the scan data may be truncated");
+		} else if ((bytes[scanEnd + 1] & 0xFF) != 0xD9) {
+			jpegDecoder.warn(String.format("marker 0x%02X and %d bytes after the scan are ignored",
+					bytes[scanEnd + 1] & 0xFF, end - scanEnd - 2));
 		}
 	}
 }
\ No newline at end of file
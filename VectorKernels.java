@@ -0,0 +1,178 @@
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+// Vector API kernels, compiled separately with --add-modules jdk.incubator.vector and reached by
+// VectorSupport through method handles when the module is present. They only take arrays and ints and
+// copy the constants they need, so that this file builds on the JDK alone; VectorIDCTEngine and
+// VectorColorConverter call them and produce exactly what IslowIDCTEngine and ColorConverter produce
+class VectorKernels {
+	static final VectorSpecies<Integer> INTS = IntVector.SPECIES_256;
+	static final VectorSpecies<Byte> BYTES = ByteVector.SPECIES_64;
+	static final VectorSpecies<Byte> PIXEL_BYTES = ByteVector.SPECIES_256;
+
+	// read by VectorSupport before it uses any kernel
+	static final boolean SUPPORTED = IntVector.SPECIES_PREFERRED.length() >= INTS.length();
+
+	// IslowIDCTEngine's
+	static final int CONST_BITS = 13;
+	static final int PASS1_BITS = 2;
+	static final int FIX_0_298631336 = 2446;
+	static final int FIX_0_390180644 = 3196;
+	static final int FIX_0_541196100 = 4433;
+	static final int FIX_0_765366865 = 6270;
+	static final int FIX_0_899976223 = 7373;
+	static final int FIX_1_175875602 = 9633;
+	static final int FIX_1_501321110 = 12299;
+	static final int FIX_1_847759065 = 15137;
+	static final int FIX_1_961570560 = 16069;
+	static final int FIX_2_053119869 = 16819;
+	static final int FIX_2_562915447 = 20995;
+	static final int FIX_3_072711026 = 25172;
+
+	// ColorConverter's
+	static final int SCALEBITS = 16;
+	static final int ONE_HALF = 1 << (SCALEBITS - 1);
+	static final int FIX_CR_R = fix(1.40200);
+	static final int FIX_CB_B = fix(1.77200);
+	static final int FIX_CR_G = fix(0.71414);
+	static final int FIX_CB_G = fix(0.34414);
+
+	// chroma lane of each of 8 pixels for 1, 2 and 4 pixels per chroma sample
+	static final VectorShuffle<Byte> REPLICATE_1 = replicateShuffle(1);
+	static final VectorShuffle<Byte> REPLICATE_2 = replicateShuffle(2);
+	static final VectorShuffle<Byte> REPLICATE_4 = replicateShuffle(4);
+	// the 3 low bytes of 8 int lanes next to each other, the 8 spare bytes last
+	static final VectorShuffle<Byte> PACK = packShuffle();
+
+	static int fix(double x) {
+		return (int) (x * (1 << SCALEBITS) + 0.5);
+	}
+
+	static VectorShuffle<Byte> replicateShuffle(int ratio) {
+		int[] lanes = new int[8];
+		for (int i = 0; i < 8; i++) {
+			lanes[i] = i / ratio;
+		}
+		return VectorShuffle.fromArray(BYTES, lanes, 0);
+	}
+
+	static VectorShuffle<Byte> packShuffle() {
+		int[] lanes = new int[32];
+		for (int i = 0; i < 8; i++) {
+			lanes[i * 3] = i * 4;
+			lanes[i * 3 + 1] = i * 4 + 1;
+			lanes[i * 3 + 2] = i * 4 + 2;
+			lanes[24 + i] = i * 4 + 3;
+		}
+		return VectorShuffle.fromArray(PIXEL_BYTES, lanes, 0);
+	}
+
+	// pass 1 of the accurate integer IDCT of the block at data[offset], dequantized by quantization in
+	// natural order: each lane computes one column and the rows of the block are the operands. workspace
+	// gets what IslowIDCTEngine's pass 1 leaves for its pass 2. The vectors stay in locals and out of helper
+	// calls that C2 may not inline, a vector escaping compiled code is boxed on the heap
+	static void IDCTColumns(int[] data, int offset, int[] quantization, int[] workspace) {
+		final int shift = CONST_BITS - PASS1_BITS;
+		IntVector in0 = row(data, offset, quantization, 0);
+		IntVector in1 = row(data, offset, quantization, 1);
+		IntVector in2 = row(data, offset, quantization, 2);
+		IntVector in3 = row(data, offset, quantization, 3);
+		IntVector in4 = row(data, offset, quantization, 4);
+		IntVector in5 = row(data, offset, quantization, 5);
+		IntVector in6 = row(data, offset, quantization, 6);
+		IntVector in7 = row(data, offset, quantization, 7);
+
+		// Even part
+		IntVector z1 = in2.add(in6).mul(FIX_0_541196100);
+		IntVector tmp2 = z1.add(in6.mul(-FIX_1_847759065));
+		IntVector tmp3 = z1.add(in2.mul(FIX_0_765366865));
+
+		// the rounding of the final descale is added here once, it reaches every output through tmp10..tmp13
+		IntVector tmp0 = in0.add(in4).lanewise(VectorOperators.LSHL, CONST_BITS).add(1 << (shift - 1));
+		IntVector tmp1 = in0.sub(in4).lanewise(VectorOperators.LSHL, CONST_BITS).add(1 << (shift - 1));
+
+		IntVector tmp10 = tmp0.add(tmp3);
+		IntVector tmp13 = tmp0.sub(tmp3);
+		IntVector tmp11 = tmp1.add(tmp2);
+		IntVector tmp12 = tmp1.sub(tmp2);
+
+		// Odd part
+		tmp0 = in7;
+		tmp1 = in5;
+		tmp2 = in3;
+		tmp3 = in1;
+
+		z1 = tmp0.add(tmp3);
+		IntVector z2 = tmp1.add(tmp2);
+		IntVector z3 = tmp0.add(tmp2);
+		IntVector z4 = tmp1.add(tmp3);
+		IntVector z5 = z3.add(z4).mul(FIX_1_175875602);
+
+		tmp0 = tmp0.mul(FIX_0_298631336);
+		tmp1 = tmp1.mul(FIX_2_053119869);
+		tmp2 = tmp2.mul(FIX_3_072711026);
+		tmp3 = tmp3.mul(FIX_1_501321110);
+		z1 = z1.mul(-FIX_0_899976223);
+		z2 = z2.mul(-FIX_2_562915447);
+		z3 = z3.mul(-FIX_1_961570560).add(z5);
+		z4 = z4.mul(-FIX_0_390180644).add(z5);
+
+		tmp0 = tmp0.add(z1).add(z3);
+		tmp1 = tmp1.add(z2).add(z4);
+		tmp2 = tmp2.add(z2).add(z3);
+		tmp3 = tmp3.add(z1).add(z4);
+
+		tmp10.add(tmp3).lanewise(VectorOperators.ASHR, shift).intoArray(workspace, 0);
+		tmp11.add(tmp2).lanewise(VectorOperators.ASHR, shift).intoArray(workspace, 8);
+		tmp12.add(tmp1).lanewise(VectorOperators.ASHR, shift).intoArray(workspace, 16);
+		tmp13.add(tmp0).lanewise(VectorOperators.ASHR, shift).intoArray(workspace, 24);
+		tmp13.sub(tmp0).lanewise(VectorOperators.ASHR, shift).intoArray(workspace, 32);
+		tmp12.sub(tmp1).lanewise(VectorOperators.ASHR, shift).intoArray(workspace, 40);
+		tmp11.sub(tmp2).lanewise(VectorOperators.ASHR, shift).intoArray(workspace, 48);
+		tmp10.sub(tmp3).lanewise(VectorOperators.ASHR, shift).intoArray(workspace, 56);
+	}
+
+	// dequantized row r of the block
+	static IntVector row(int[] data, int offset, int[] quantization, int r) {
+		return IntVector.fromArray(INTS, data, offset + r * 8).mul(IntVector.fromArray(INTS, quantization, r * 8));
+	}
+
+	static IntVector widen(ByteVector bytes) {
+		return ((IntVector) bytes.convertShape(VectorOperators.B2I, INTS, 0)).and(0xFF);
+	}
+
+	// YCbCr to RGB of columns [start, width) of a line, 8 pixels at a time while whole vectors fit, with ratio
+	// (1, 2 or 4) pixels per chroma sample from chromaStart on, replicated across the pixels with a shuffle.
+	// The red and blue bytes of each pixel go to redOffset and blueOffset. Returns the first column left to
+	// the scalar code
+	static int convertColumns(byte[] yData, int yOffset, byte[] cbData, byte[] crData, int chromaStart, int ratio,
+			byte[] output, int outputOffset, int start, int width, int redOffset, int blueOffset) {
+		VectorShuffle<Byte> replicate = ratio == 1 ? REPLICATE_1 : ratio == 2 ? REPLICATE_2 : REPLICATE_4;
+		int redShift = redOffset * 8;
+		int blueShift = blueOffset * 8;
+
+		// 32 bytes are stored for 8 pixels, the spare ones are overwritten by the next 8 pixels
+		int x = start;
+		for (; x + 11 <= width && chromaStart + (x - start) / ratio + 8 <= cbData.length; x += 8) {
+			int chromaIndex = chromaStart + (x - start) / ratio;
+			IntVector luma = widen(ByteVector.fromArray(BYTES, yData, yOffset + x));
+			IntVector cb = widen(ByteVector.fromArray(BYTES, cbData, chromaIndex).rearrange(replicate)).sub(128);
+			IntVector cr = widen(ByteVector.fromArray(BYTES, crData, chromaIndex).rearrange(replicate)).sub(128);
+
+			IntVector r = cr.mul(FIX_CR_R).add(ONE_HALF).lanewise(VectorOperators.ASHR, SCALEBITS);
+			IntVector g = cb.mul(-FIX_CB_G).add(cr.mul(-FIX_CR_G)).add(ONE_HALF).lanewise(VectorOperators.ASHR,
+					SCALEBITS);
+			IntVector b = cb.mul(FIX_CB_B).add(ONE_HALF).lanewise(VectorOperators.ASHR, SCALEBITS);
+
+			// clamped in line, a helper is past C2's inlining budget here and would box the vectors
+			IntVector pixels = luma.add(r).max(0).min(255).lanewise(VectorOperators.LSHL, redShift)
+					.or(luma.add(g).max(0).min(255).lanewise(VectorOperators.LSHL, 8))
+					.or(luma.add(b).max(0).min(255).lanewise(VectorOperators.LSHL, blueShift));
+			pixels.reinterpretAsBytes().rearrange(PACK).intoArray(output, outputOffset + x * 3);
+		}
+		return x;
+	}
+}
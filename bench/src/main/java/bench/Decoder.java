@@ -0,0 +1,102 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Executable;
+import java.lang.reflect.Method;
+import java.nio.channels.WritableByteChannel;
+
+// the decoder classes are in the unnamed package of Main.java, which code in a package cannot name, so the
+// benchmarks call them through method handles. Held in static final fields they are inlined by the JIT like
+// direct calls, the decoder objects are passed around as Object
+final class Decoder {
+	static final Class<?> MAIN = type("Main");
+	static final Class<?> OPTIONS = type("DecoderOptions");
+	static final Class<?> HEADER = type("JPEGHeader");
+	static final Class<?> DECODER = type("JPEGDecoder");
+	static final Class<?> CONTEXT = type("DecoderContext");
+	static final Class<?> BMP_WRITER = type("BMPWriter");
+	static final Class<?> IMAGE_WRITER = type("ImageWriter");
+
+	static final MethodHandle NEW_OPTIONS = constructor(OPTIONS);
+	static final MethodHandle SET_PARALLELISM = method(OPTIONS, "setParallelism", 1);
+	static final MethodHandle NEW_HEADER = constructor(HEADER);
+	static final MethodHandle NEW_DECODER = constructor(DECODER, OPTIONS);
+	static final MethodHandle NEW_CONTEXT = constructor(CONTEXT, OPTIONS);
+	static final MethodHandle NEW_BMP_WRITER = constructor(BMP_WRITER, WritableByteChannel.class);
+
+	// Main.readJPEG(filename), Main.parseJPEGHeaderAndDecode(buffer, header, decoder)
+	static final MethodHandle READ_JPEG = method(MAIN, "readJPEG", 1);
+	static final MethodHandle PARSE = method(MAIN, "parseJPEGHeaderAndDecode", 3);
+
+	// the stages of JPEGDecoder.decodeRest with -staged, each over the whole image
+	static final MethodHandle RESET = method(DECODER, "reset", 0);
+	static final MethodHandle DECODE = method(DECODER, "decode", 1);
+	static final MethodHandle IDCT = method(DECODER, "IDCT", 1);
+	static final MethodHandle YCBCR2RGB = method(DECODER, "YCbCr2RGB", 1);
+	static final MethodHandle GET_PIXELS = method(DECODER, "getPixels", 0);
+	static final MethodHandle GET_OUTPUT_WIDTH = method(DECODER, "getOutputWidth", 0);
+	static final MethodHandle GET_OUTPUT_HEIGHT = method(DECODER, "getOutputHeight", 0);
+	static final MethodHandle GET_OUTPUT_CHANNELS = method(DECODER, "getOutputChannels", 0);
+
+	// ImageWriter.write(pixels, width, height, channels), DecoderContext.decode(filename, outputFilename, format)
+	static final MethodHandle WRITE = method(IMAGE_WRITER, "write", 4);
+	static final MethodHandle DECODE_FILE = method(CONTEXT, "decode", 3);
+
+	private Decoder() {
+	}
+
+	// options decoding on threads threads
+	static Object options(int threads) throws Throwable {
+		Object options = NEW_OPTIONS.invoke();
+		SET_PARALLELISM.invoke(options, threads);
+		return options;
+	}
+
+	static Class<?> type(String name) {
+		try {
+			return Class.forName(name);
+		} catch (ClassNotFoundException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	static MethodHandle constructor(Class<?> type, Class<?>... parameterTypes) {
+		try {
+			Constructor<?> constructor = type.getDeclaredConstructor(parameterTypes);
+			return unreflect(constructor);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	// the only method called name with parameterCount parameters declared by type
+	static MethodHandle method(Class<?> type, String name, int parameterCount) {
+		Method found = null;
+		for (Method method : type.getDeclaredMethods()) {
+			if (method.getName().equals(name) && method.getParameterCount() == parameterCount) {
+				if (found != null) {
+					throw new ExceptionInInitializerError(type.getName() + "." + name + " is ambiguous");
+				}
+				found = method;
+			}
+		}
+		if (found == null) {
+			throw new ExceptionInInitializerError("no " + type.getName() + "." + name);
+		}
+		return unreflect(found);
+	}
+
+	// the classes are package private, the handles take and return Object for them
+	static MethodHandle unreflect(Executable executable) {
+		executable.setAccessible(true);
+		try {
+			MethodHandle handle = executable instanceof Method ? MethodHandles.lookup().unreflect((Method) executable)
+					: MethodHandles.lookup().unreflectConstructor((Constructor<?>) executable);
+			return handle.asType(handle.type().erase());
+		} catch (IllegalAccessException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+}
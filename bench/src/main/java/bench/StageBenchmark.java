@@ -0,0 +1,111 @@
+package bench;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// each decoding stage of one image per operation, on what the previous stages left in the decoder. The images
+// are read from -Djpeg.dir (default .., the top of the repository when run from bench)
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StageBenchmark {
+	@Param({ "teatime.jpg", "monalisa.jpg", "gig-sn01.jpg", "gig-sn08.jpg" })
+	String image;
+
+	// threads of the decoding stages, 1 measures a single core
+	@Param({ "1" })
+	int threads;
+
+	String filename;
+	Object header;
+	Object decoder;
+	Object pixels;
+	int width;
+	int height;
+	int channels;
+	Object writer;
+	Object context;
+	Path outputPath;
+	FileChannel output;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Throwable {
+		filename = Paths.get(System.getProperty("jpeg.dir", ".."), image).toString();
+		Object options = Decoder.options(threads);
+		header = Decoder.NEW_HEADER.invoke();
+		decoder = Decoder.NEW_DECODER.invoke(options);
+		ByteBuffer input = (ByteBuffer) Decoder.READ_JPEG.invoke(filename);
+		Decoder.PARSE.invoke(input, header, decoder);
+		Decoder.DECODE.invoke(decoder, header);
+		Decoder.IDCT.invoke(decoder, header);
+		Decoder.YCBCR2RGB.invoke(decoder, header);
+		pixels = Decoder.GET_PIXELS.invoke(decoder);
+		width = (int) Decoder.GET_OUTPUT_WIDTH.invoke(decoder);
+		height = (int) Decoder.GET_OUTPUT_HEIGHT.invoke(decoder);
+		channels = (int) Decoder.GET_OUTPUT_CHANNELS.invoke(decoder);
+
+		outputPath = Files.createTempFile("bench", ".bmp");
+		output = FileChannel.open(outputPath, StandardOpenOption.WRITE);
+		writer = Decoder.NEW_BMP_WRITER.invoke(output);
+		context = Decoder.NEW_CONTEXT.invoke(options);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		output.close();
+		Files.deleteIfExists(outputPath);
+	}
+
+	// Huffman decoding of the scan into the coefficient planes, which are cleared and reused
+	@Benchmark
+	public void huffmanDecode() throws Throwable {
+		Decoder.RESET.invoke(decoder);
+		Decoder.DECODE.invoke(decoder, header);
+	}
+
+	// IDCT8x8 of every block, the dequantization is folded into it
+	@Benchmark
+	public void IDCT() throws Throwable {
+		Decoder.IDCT.invoke(decoder, header);
+	}
+
+	@Benchmark
+	public void YCbCr2RGB() throws Throwable {
+		Decoder.YCBCR2RGB.invoke(decoder, header);
+	}
+
+	// BMPWriter over the decoded pixels, into the page cache
+	@Benchmark
+	public void saveBMP() throws Throwable {
+		output.position(0);
+		Decoder.WRITE.invoke(writer, pixels, width, height, channels);
+	}
+
+	// read, parse, decode and write the file with a reused DecoderContext, as the batch mode does
+	@Benchmark
+	public Object decodeFile() throws Throwable {
+		return Decoder.DECODE_FILE.invoke(context, filename, outputPath.toString(), "bmp");
+	}
+}